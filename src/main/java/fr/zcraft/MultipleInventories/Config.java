@@ -1,5 +1,7 @@
 package fr.zcraft.MultipleInventories;
 
+import fr.zcraft.MultipleInventories.snaphots.SnapshotCompression;
+import fr.zcraft.MultipleInventories.snaphots.SnapshotFormat;
 import fr.zcraft.MultipleInventories.quartzlib.components.configuration.Configuration;
 import fr.zcraft.MultipleInventories.quartzlib.components.configuration.ConfigurationItem;
 import fr.zcraft.MultipleInventories.quartzlib.components.configuration.ConfigurationMap;
@@ -15,6 +17,18 @@ public class Config extends Configuration
 {
     static public final ConfigurationItem<Locale> LOCALE = item("locale", Locale.class);
     static public final ConfigurationItem<Boolean> PER_GAMEMODE_INVENTORIES = item("per-gamemode-inventories", true);
+    static public final ConfigurationItem<SnapshotFormat> SNAPSHOTS_FORMAT = item("snapshots-format", SnapshotFormat.BINARY);
+    static public final ConfigurationItem<SnapshotCompression> SNAPSHOTS_COMPRESSION = item("snapshots-compression", SnapshotCompression.DEFLATE);
+    static public final ConfigurationItem<String> SNAPSHOTS_COMPRESSION_DICTIONARY = item("snapshots-compression-dictionary", "");
+    static public final ConfigurationItem<Integer> SNAPSHOTS_FLUSH_INTERVAL = item("snapshots-flush-interval", 60);
+    static public final ConfigurationItem<Integer> SNAPSHOTS_MAX_DIRTY_SIZE = item("snapshots-max-dirty-size", 32);
+    static public final ConfigurationItem<Integer> SNAPSHOTS_LOGIN_WAIT = item("snapshots-login-wait", 2000);
+    static public final ConfigurationItem<Integer> OFFLINE_STORES_CACHE_PLAYERS = item("offline-stores-cache-players", 1000);
+    static public final ConfigurationItem<Integer> OFFLINE_STORES_CACHE_SIZE = item("offline-stores-cache-size", 64);
+    static public final ConfigurationItem<Integer> OFFLINE_STORES_CACHE_EXPIRY = item("offline-stores-cache-expiry", 60);
+    static public final ConfigurationItem<Integer> SNAPSHOTS_APPLY_TIME_BUDGET = item("snapshots-apply-time-budget", 10);
+    static public final ConfigurationItem<Integer> IO_THREADS = item("io-threads", 2);
+    static public final ConfigurationItem<Integer> IO_CALLBACKS_TIME_BUDGET = item("io-callbacks-time-budget", 5);
     static public final ConfigurationMap<String, List> WORLD_GROUPS = map("world-groups", String.class, List.class);
 }
 
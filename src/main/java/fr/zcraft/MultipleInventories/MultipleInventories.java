@@ -4,12 +4,20 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import fr.zcraft.MultipleInventories.commands.mi.MiListCommand;
 import fr.zcraft.MultipleInventories.commands.mi.MiReloadCommand;
+import fr.zcraft.MultipleInventories.commands.mi.MiStatsCommand;
 import fr.zcraft.MultipleInventories.players.PlayersManager;
 import fr.zcraft.MultipleInventories.snaphots.SnapshotsIO;
+import fr.zcraft.MultipleInventories.quartzlib.core.QuartzLib;
 import fr.zcraft.MultipleInventories.quartzlib.core.QuartzPlugin;
 import fr.zcraft.MultipleInventories.quartzlib.components.commands.Commands;
 import fr.zcraft.MultipleInventories.quartzlib.components.i18n.I18n;
+import fr.zcraft.MultipleInventories.quartzlib.components.nbt.NBT;
+import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
+import fr.zcraft.MultipleInventories.quartzlib.tools.reflection.NMSException;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.server.PluginDisableEvent;
 
 
 public final class MultipleInventories extends QuartzPlugin implements Listener
@@ -31,10 +39,47 @@ public final class MultipleInventories extends QuartzPlugin implements Listener
 
         I18n.setPrimaryLocale(Config.LOCALE.get());
 
+        // Resolves the NMS accessors once, instead of on the first snapshot.
+        try
+        {
+            NBT.init();
+        }
+        catch (final NMSException e)
+        {
+            PluginLogger.warning("Unable to access the items NBT data, items will not be saved properly.", e);
+        }
+
         playersManager = loadComponent(PlayersManager.class);
 
         // noinspection unchecked
-        Commands.register("mi", MiListCommand.class, MiReloadCommand.class);
+        Commands.register("mi", MiListCommand.class, MiReloadCommand.class, MiStatsCommand.class);
+
+        QuartzLib.registerEvents(this);
+    }
+
+    /**
+     * Writes the snapshots still in memory before the components are disabled.
+     *
+     * QuartzLib disables the components (including the snapshots I/O worker)
+     * on this event, which is called before {@link #onDisable()}; this runs
+     * first, so the writes are queued before the worker drains and stops.
+     */
+    @EventHandler (priority = EventPriority.LOWEST)
+    public void onPluginDisable(final PluginDisableEvent ev)
+    {
+        if (ev.getPlugin() == this && playersManager != null)
+            playersManager.shutdown();
+    }
+
+    /**
+     * Servers disabling the plugin before calling the event get the same
+     * ordering from here. Does nothing if the stores were already flushed.
+     */
+    @Override
+    public void onDisable()
+    {
+        if (playersManager != null)
+            playersManager.shutdown();
     }
 
     public static MultipleInventories get()
@@ -39,6 +39,7 @@ public enum Permissions
     LIST("multipleinventories.list"),
     RELOAD("multipleinventories.reload"),
     IMPORT("multipleinventories.import"),
+    STATS("multipleinventories.stats"),
 
     ;
 
@@ -3,6 +3,7 @@ package fr.zcraft.MultipleInventories.commands.mi;
 import fr.zcraft.MultipleInventories.Config;
 import fr.zcraft.MultipleInventories.MultipleInventories;
 import fr.zcraft.MultipleInventories.Permissions;
+import fr.zcraft.MultipleInventories.snaphots.SnapshotsIO;
 import fr.zcraft.MultipleInventories.quartzlib.components.commands.Command;
 import fr.zcraft.MultipleInventories.quartzlib.components.commands.CommandInfo;
 import fr.zcraft.MultipleInventories.quartzlib.components.i18n.I;
@@ -16,6 +17,7 @@ public final class MiReloadCommand extends Command
     protected void run()
     {
         Config.reload();
+        SnapshotsIO.loadCompressionDictionary();
         MultipleInventories.get().getPlayersManager().loadWorldsGroups();
         success(I.t("{0} configuration reloaded.", MultipleInventories.get().getDescription().getName()));
     }
@@ -0,0 +1,58 @@
+package fr.zcraft.MultipleInventories.commands.mi;
+
+import fr.zcraft.MultipleInventories.MultipleInventories;
+import fr.zcraft.MultipleInventories.Permissions;
+import fr.zcraft.MultipleInventories.players.OfflineStoresCache;
+import fr.zcraft.MultipleInventories.snaphots.ItemStackSnapshotsPool;
+import fr.zcraft.MultipleInventories.snaphots.NBTStrings;
+import fr.zcraft.MultipleInventories.snaphots.SnapshotsIO;
+import fr.zcraft.MultipleInventories.quartzlib.components.commands.Command;
+import fr.zcraft.MultipleInventories.quartzlib.components.commands.CommandInfo;
+import fr.zcraft.MultipleInventories.quartzlib.components.i18n.I;
+import fr.zcraft.MultipleInventories.quartzlib.components.rawtext.RawText;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+
+@CommandInfo (name = "stats")
+public final class MiStatsCommand extends Command
+{
+    @Override
+    protected void run()
+    {
+        final OfflineStoresCache offlineStores = MultipleInventories.get().getPlayersManager().getOfflineStoresCache();
+
+        if (sender instanceof Player) info("");
+
+        send(
+                new RawText("")
+                        .then(I.t("Snapshots statistics"))
+                            .style(ChatColor.GREEN, ChatColor.BOLD)
+                .build()
+        );
+
+        info(I.t("Saves: {white}{0}{gray} requested, {white}{1}{gray} merged into a newer one, {white}{2}{gray} waiting to be written.", SnapshotsIO.getSavesRequested(), SnapshotsIO.getSavesCollapsed(), SnapshotsIO.getPendingSavesCount()));
+        info(I.t("Loads and saves waiting for the main thread: {white}{0}{gray}.", SnapshotsIO.getCallbacksQueueDepth()));
+        info(I.t("Players inventories waiting to be restored: {white}{0}{gray}.", MultipleInventories.get().getPlayersManager().getPendingAppliesCount()));
+        info(I.t("Shared items: {white}{0}{gray}, reused {white}{1}%{gray} of the time.", ItemStackSnapshotsPool.size(), percent(ItemStackSnapshotsPool.getHitRate())));
+        info(I.t("Shared NBT strings: {white}{0}{gray}, reused {white}{1}%{gray} of the time.", NBTStrings.size(), percent(NBTStrings.getHitRate())));
+
+        if (offlineStores != null)
+        {
+            info(I.t("Logged out players in memory: {white}{0}{gray} ({white}{1} KiB{gray}).", offlineStores.size(), offlineStores.getWeight() / 1024));
+            info(I.t("Logins from memory: {white}{0}{gray}, from the disk: {white}{1}{gray}, evicted: {white}{2}{gray}.", offlineStores.getHits(), offlineStores.getMisses(), offlineStores.getEvictions()));
+        }
+    }
+
+    private static long percent(final double ratio)
+    {
+        return Math.round(ratio * 100);
+    }
+
+    @Override
+    public boolean canExecute(CommandSender sender)
+    {
+        return Permissions.STATS.grantedTo(sender);
+    }
+}
@@ -215,6 +215,8 @@ public class ImportProcess
 
                 try
                 {
+                    final Map<String, Map<GameMode, PlayerSnapshot>> snapshots = new HashMap<>();
+
                     for (final String group : worldGroups.keySet())
                     {
                         for (final GameMode mode : GameMode.values())
@@ -224,7 +226,7 @@ public class ImportProcess
                                 final PlayerSnapshot snapshot = importer.importSnapshot(player, group, mode);
                                 if (snapshot != null)
                                 {
-                                    SnapshotsIO.saveSnapshot(player.getUniqueId(), group, mode, snapshot);
+                                    snapshots.computeIfAbsent(group, g -> new EnumMap<>(GameMode.class)).put(mode, snapshot);
                                 }
                             }
                             catch (final Exception e)
@@ -237,6 +239,8 @@ public class ImportProcess
                         }
                     }
 
+                    SnapshotsIO.saveSnapshots(player.getUniqueId(), snapshots);
+
                     MinecraftCleaner.cleanup();
                 }
                 catch (final Exception e)
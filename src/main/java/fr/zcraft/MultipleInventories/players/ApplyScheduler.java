@@ -0,0 +1,129 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.players;
+
+import fr.zcraft.MultipleInventories.quartzlib.tools.runners.RunTask;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+
+/**
+ * Applies the queued snapshots to the players, within a time budget per
+ * tick, oldest first.
+ *
+ * When many players change world at once (e.g. teleported together to a
+ * minigame), applying all their snapshots in the same tick would freeze the
+ * server; they are spread over the next ticks instead. At least one snapshot
+ * is applied each tick, whatever the budget.
+ *
+ * Only accessed from the main thread.
+ */
+final class ApplyScheduler implements Runnable
+{
+    private final long timeBudget;
+    private final Deque<PlayerSnapshotsStore> queue = new ArrayDeque<>();
+
+    private BukkitTask task = null;
+
+
+    /**
+     * @param timeBudget The maximal time spent applying snapshots each tick,
+     *                   in milliseconds.
+     */
+    ApplyScheduler(final long timeBudget)
+    {
+        this.timeBudget = timeBudget * 1_000_000L;
+    }
+
+    void start()
+    {
+        if (task == null) task = RunTask.timer(this, 1L, 1L);
+    }
+
+    void stop()
+    {
+        if (task != null)
+        {
+            task.cancel();
+            task = null;
+        }
+
+        // Nothing must be left half-done, or the players would keep the inventory of their previous group.
+        applyAll();
+    }
+
+    /**
+     * Queues a store for its snapshot to be applied.
+     *
+     * @param store The store, not already queued.
+     */
+    void schedule(final PlayerSnapshotsStore store)
+    {
+        queue.add(store);
+    }
+
+    /**
+     * Applies the queued snapshots right away, ignoring the budget.
+     */
+    void applyAll()
+    {
+        PlayerSnapshotsStore store;
+        while ((store = queue.poll()) != null) store.applyPendingSnapshot();
+    }
+
+    /**
+     * @return The amount of snapshots waiting to be applied.
+     */
+    int getQueueSize()
+    {
+        return queue.size();
+    }
+
+    @Override
+    public void run()
+    {
+        final long start = System.nanoTime();
+        PlayerSnapshotsStore store;
+
+        do
+        {
+            store = queue.poll();
+            if (store == null) return;
+
+            store.applyPendingSnapshot();
+        }
+        while (System.nanoTime() - start < timeBudget);
+    }
+}
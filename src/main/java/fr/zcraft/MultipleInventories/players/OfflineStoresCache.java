@@ -0,0 +1,314 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.players;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+
+/**
+ * Keeps the stores of the players who logged out for a while, so they don't
+ * have to be read again if they reconnect shortly after.
+ *
+ * The cache is bounded both by the amount of stores and by their approximate
+ * size in memory, the least recently used stores being evicted first. Stores
+ * enter the cache without any item built in advance, and their size is
+ * updated periodically, as the items of their last snapshots are extracted
+ * by the I/O threads after the logout. Stores
+ * are also evicted when they were not used for a while. Evicted stores are
+ * {@link PlayerSnapshotsStore#evict() evicted} from the players manager too.
+ *
+ * Stores are only added and evicted from the main thread, but may be taken
+ * from any thread. This class is thread-safe.
+ */
+public final class OfflineStoresCache
+{
+    private final int maxStores;
+    private final long maxWeight;
+    private final long expireAfterAccess;
+
+    /**
+     * The cached stores, in access order. As a store is removed from the cache
+     * when it is used again, this is also the insertion order.
+     */
+    private final LinkedHashMap<UUID, CachedStore> stores = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+
+    /**
+     * @param maxStores         The maximal amount of cached stores.
+     * @param maxWeight         The maximal approximate size of all the cached
+     *                          stores, in bytes.
+     * @param expireAfterAccess The time, in milliseconds, after which an
+     *                          unused store is evicted.
+     */
+    OfflineStoresCache(final int maxStores, final long maxWeight, final long expireAfterAccess)
+    {
+        this.maxStores = maxStores;
+        this.maxWeight = maxWeight;
+        this.expireAfterAccess = expireAfterAccess;
+    }
+
+    /**
+     * Adds the store of a player who just logged out, evicting the least
+     * recently used stores if the cache is full.
+     *
+     * @param playerID The player's UUID.
+     * @param store    The store, which must be flushed.
+     */
+    void put(final UUID playerID, final PlayerSnapshotsStore store)
+    {
+        final CachedStore cached = new CachedStore(store, store.getApproximateSize(), System.currentTimeMillis());
+        final List<CachedStore> evicted = new ArrayList<>();
+
+        synchronized (this)
+        {
+            final CachedStore previous = stores.put(playerID, cached);
+
+            weight += cached.weight;
+
+            if (previous != null)
+            {
+                weight -= previous.weight;
+                evicted.add(previous);
+            }
+
+            evictOverflow(evicted);
+        }
+
+        evict(evicted);
+    }
+
+    /**
+     * Unlinks the least recently used stores until the cache is within its
+     * bounds. Must be called while holding the lock.
+     *
+     * @param evicted The list to add the unlinked stores to, to be {@link
+     *                #evict(List) evicted} once the lock is released.
+     */
+    private void evictOverflow(final List<CachedStore> evicted)
+    {
+        final Iterator<CachedStore> iterator = stores.values().iterator();
+        while (iterator.hasNext() && (stores.size() > maxStores || weight > maxWeight))
+        {
+            final CachedStore eldest = iterator.next();
+
+            iterator.remove();
+            weight -= eldest.weight;
+            evicted.add(eldest);
+        }
+    }
+
+    /**
+     * Removes and returns the cached store of a player, e.g. when he logs in
+     * again.
+     *
+     * @param playerID The player's UUID.
+     *
+     * @return The store, or {@code null} if it is not in the cache.
+     */
+    synchronized PlayerSnapshotsStore take(final UUID playerID)
+    {
+        final CachedStore cached = stores.remove(playerID);
+
+        if (cached == null)
+        {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        weight -= cached.weight;
+
+        return cached.store;
+    }
+
+    /**
+     * Evicts the stores not used for longer than the expiration time, then
+     * updates the size of the others. Called periodically, from the main
+     * thread.
+     *
+     * The sizes are computed without holding the lock, so the logins taking
+     * a store from the cache are not blocked meanwhile.
+     */
+    void expire()
+    {
+        final long expiredBefore = System.currentTimeMillis() - expireAfterAccess;
+        final List<CachedStore> evicted = new ArrayList<>();
+        final List<Map.Entry<UUID, CachedStore>> remaining;
+
+        synchronized (this)
+        {
+            final Iterator<CachedStore> iterator = stores.values().iterator();
+
+            while (iterator.hasNext())
+            {
+                final CachedStore cached = iterator.next();
+                if (cached.lastAccess > expiredBefore) break;
+
+                iterator.remove();
+                weight -= cached.weight;
+                evicted.add(cached);
+            }
+
+            remaining = new ArrayList<>(stores.entrySet());
+        }
+
+        final long[] newWeights = new long[remaining.size()];
+        for (int i = 0; i < newWeights.length; i++)
+            newWeights[i] = remaining.get(i).getValue().store.getApproximateSize();
+
+        synchronized (this)
+        {
+            for (int i = 0; i < newWeights.length; i++)
+            {
+                // Stores are only added from the main thread, so a store still
+                // there is the one weighed; the others were taken meanwhile.
+                if (!stores.containsKey(remaining.get(i).getKey())) continue;
+
+                final CachedStore cached = remaining.get(i).getValue();
+
+                weight += newWeights[i] - cached.weight;
+                cached.weight = newWeights[i];
+            }
+
+            evictOverflow(evicted);
+        }
+
+        evict(evicted);
+    }
+
+    /**
+     * Evicts all the cached stores.
+     */
+    void clear()
+    {
+        final List<CachedStore> evicted;
+
+        synchronized (this)
+        {
+            evicted = new ArrayList<>(stores.values());
+            stores.clear();
+            weight = 0;
+        }
+
+        evict(evicted);
+    }
+
+    /**
+     * {@link PlayerSnapshotsStore#evict() Evicts} stores unlinked from the
+     * cache. Called without holding the lock.
+     */
+    private void evict(final List<CachedStore> evicted)
+    {
+        if (evicted.isEmpty()) return;
+
+        for (final CachedStore cached : evicted)
+            cached.store.evict();
+
+        synchronized (this)
+        {
+            evictions += evicted.size();
+        }
+    }
+
+    /**
+     * @return The amount of cached stores.
+     */
+    public synchronized int size()
+    {
+        return stores.size();
+    }
+
+    /**
+     * @return The approximate size of the cached stores, in bytes.
+     */
+    public synchronized long getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * @return The amount of logins for which the store was found in the
+     * cache.
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return The amount of logins for which the store had to be read from
+     * the disk.
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return The amount of stores evicted from the cache.
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+
+    private static final class CachedStore
+    {
+        private final PlayerSnapshotsStore store;
+
+        /**
+         * Guarded by the cache lock.
+         */
+        private long weight;
+        private final long lastAccess;
+
+        private CachedStore(final PlayerSnapshotsStore store, final long weight, final long lastAccess)
+        {
+            this.store = store;
+            this.weight = weight;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
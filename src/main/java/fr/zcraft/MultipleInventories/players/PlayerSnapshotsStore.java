@@ -32,22 +32,28 @@
 package fr.zcraft.MultipleInventories.players;
 
 import fr.zcraft.MultipleInventories.MultipleInventories;
+import fr.zcraft.MultipleInventories.snaphots.LazySnapshot;
 import fr.zcraft.MultipleInventories.snaphots.PlayerSnapshot;
 import fr.zcraft.MultipleInventories.snaphots.SnapshotsIO;
 import fr.zcraft.MultipleInventories.quartzlib.components.worker.WorkerCallback;
 import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
-import fr.zcraft.MultipleInventories.quartzlib.tools.runners.RunTask;
 import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.potion.PotionEffect;
-import org.bukkit.scheduler.BukkitTask;
 
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -56,29 +62,56 @@ import java.util.concurrent.ConcurrentHashMap;
 public class PlayerSnapshotsStore
 {
     private final UUID playerID;
-    private final Map<String, Map<GameMode, PlayerSnapshot>> snapshots = new ConcurrentHashMap<>();
+    private final Map<String, Map<GameMode, LazySnapshot>> snapshots = new ConcurrentHashMap<>();
 
     /**
-     * Updated when the player data is being loaded, when he just logged in.
-     * Avoids world or gamemode change if data is not loaded, as it would cause
-     * losses.
+     * The snapshots saved in memory but not yet written to the disk, with
+     * their approximate size. Only accessed from the main thread.
      */
-    private boolean dataLoaded = false;
+    private final Map<String, Map<GameMode, Long>> dirtySnapshots = new HashMap<>();
 
     /**
-     * Updated when the player state is being saved then changed, when he
-     * updates its gamemode or teleport. Avoids exploits like rapid world or
-     * gamemode change to duplicate stuff.
+     * The sum of the sizes in {@link #dirtySnapshots}.
      */
-    private boolean changesBeingApplied = false;
+    private long dirtySize = 0;
 
     /**
-     * Stores the planned update if there is one, to avoid multiple updates
-     * walking on each other, like when a gamemode and world are changed in
-     * the same tick, or when the gamemode or world is changed many times
-     * in a single tick.
+     * The sum of {@link #dirtySize} over all the stores, kept up to date by
+     * each store, so it can be checked after each save without walking all
+     * the stores.
      */
-    private BukkitTask nextTickUpdateTask = null;
+    private static final AtomicLong totalDirtySize = new AtomicLong();
+
+    /**
+     * The lifecycle state of this store. Read from any thread, and only
+     * changed through atomic transitions.
+     */
+    private final AtomicReference<State> state = new AtomicReference<>(State.LOADING);
+
+    /**
+     * Released when the store leaves the {@link State#LOADING} state.
+     */
+    private final CountDownLatch loadLatch = new CountDownLatch(1);
+
+    /**
+     * {@code true} if an update is planned, to avoid multiple updates walking
+     * on each other, like when a gamemode and world are changed in the same
+     * tick, or when the gamemode or world is changed many times before the
+     * update is applied. Only accessed from the main thread.
+     */
+    private boolean applyPending = false;
+
+    /**
+     * The snapshot whose items are being built in advance for the planned
+     * update, if any. Only accessed from the main thread.
+     */
+    private LazySnapshot preparedSnapshot = null;
+
+    /**
+     * {@code true} once the snapshots were queued to be decoded in the
+     * background. Only accessed from the main thread.
+     */
+    private boolean decodeQueued = false;
 
 
     public PlayerSnapshotsStore(OfflinePlayer player)
@@ -94,28 +127,83 @@ public class PlayerSnapshotsStore
     /**
      * Loads the snapshots from the disk. Should be called only once when the
      * player login.
+     *
+     * The data is considered loaded as soon as the snapshots are read; they
+     * are decoded when first needed, or in the background once the player is
+     * online (see {@link #decodeSnapshotsInBackground()}).
      */
     public void loadSnapshots()
     {
-        SnapshotsIO.loadSnapshots(playerID, new WorkerCallback<Map<String, Map<GameMode, PlayerSnapshot>>>()
+        SnapshotsIO.loadSnapshots(playerID, new WorkerCallback<Map<String, Map<GameMode, LazySnapshot>>>()
         {
             @Override
-            public void finished(final Map<String, Map<GameMode, PlayerSnapshot>> result)
+            public void finished(final Map<String, Map<GameMode, LazySnapshot>> result)
             {
+                // The store may have been evicted while loading.
+                if (state.get() != State.LOADING) return;
+
                 snapshots.clear();
                 snapshots.putAll(result);
-                dataLoaded = true;
+                transition(State.LOADING, State.READY);
+                loadLatch.countDown();
+
+                // If the player joined while loading; else, this is done on join.
+                decodeSnapshotsInBackground();
             }
 
             @Override
             public void errored(final Throwable exception)
             {
                 PluginLogger.error("Unable to load snapshots for player {0} ({1}), check the access permissions of the storage directory. This player will have its inventory lost in world-group or gamemode change!", exception, Bukkit.getOfflinePlayer(playerID).getName(), playerID);
-                dataLoaded = true;
+                transition(State.LOADING, State.READY);
+                loadLatch.countDown();
             }
         });
     }
 
+    /**
+     * Queues the snapshots of the configured groups to be decoded in the
+     * background, starting with the one the player currently uses, so they
+     * are ready for the next transitions without decoding on the main thread.
+     *
+     * Does nothing if the player is offline, if the store is not loaded yet
+     * (the load will call this), or if this was already done.
+     */
+    void decodeSnapshotsInBackground()
+    {
+        if (decodeQueued || !isDataLoaded()) return;
+
+        final Player player = Bukkit.getPlayer(playerID);
+        if (player == null || !player.isOnline()) return;
+
+        decodeQueued = true;
+
+        final PlayersManager manager = MultipleInventories.get().getPlayersManager();
+        final String currentGroup = manager.getGroupForWorld(player.getWorld());
+        final Map<String, Map<GameMode, LazySnapshot>> toDecode = new LinkedHashMap<>();
+
+        final Map<GameMode, LazySnapshot> currentGroupSnapshots = snapshots.get(currentGroup);
+        if (currentGroupSnapshots != null)
+        {
+            final Map<GameMode, LazySnapshot> ordered = new LinkedHashMap<>();
+            final LazySnapshot current = currentGroupSnapshots.get(player.getGameMode());
+
+            if (current != null) ordered.put(player.getGameMode(), current);
+            ordered.putAll(currentGroupSnapshots);
+
+            toDecode.put(currentGroup, ordered);
+        }
+
+        // Snapshots of other groups (e.g. groups removed from the configuration) are only decoded if needed.
+        for (final String group : manager.getConfiguredGroups())
+        {
+            final Map<GameMode, LazySnapshot> groupSnapshots = snapshots.get(group);
+            if (groupSnapshots != null) toDecode.putIfAbsent(group, groupSnapshots);
+        }
+
+        if (!toDecode.isEmpty()) SnapshotsIO.decodeSnapshots(playerID, toDecode);
+    }
+
     /**
      * Returns a snapshot for the given group and gamemode.
      *
@@ -126,23 +214,27 @@ public class PlayerSnapshotsStore
      */
     public PlayerSnapshot getSnapshot(final String group, final GameMode gamemode)
     {
-        final Map<GameMode, PlayerSnapshot> groupSnapshots = snapshots.get(group);
+        final Map<GameMode, LazySnapshot> groupSnapshots = snapshots.get(group);
         if (groupSnapshots == null) return null;
 
-        return groupSnapshots.getOrDefault(gamemode, null);
+        final LazySnapshot snapshot = groupSnapshots.get(gamemode);
+        return snapshot != null ? snapshot.get() : null;
     }
 
     /**
      * Saves a snapshot in the given group and gamemode. A previous snapshot is
      * overwritten.
      *
+     * The snapshot is only kept in memory; it is written to the disk when the
+     * store is {@link #flush() flushed}.
+     *
      * @param group    The worlds group.
      * @param gamemode The gamemode.
      * @param snapshot The snapshot to save.
      */
     public void saveSnapshot(final String group, final GameMode gamemode, final PlayerSnapshot snapshot)
     {
-        Map<GameMode, PlayerSnapshot> groupSnapshots = snapshots.get(group);
+        Map<GameMode, LazySnapshot> groupSnapshots = snapshots.get(group);
 
         if (groupSnapshots == null)
         {
@@ -150,9 +242,96 @@ public class PlayerSnapshotsStore
             snapshots.put(group, groupSnapshots);
         }
 
-        groupSnapshots.put(gamemode, snapshot);
+        final LazySnapshot previous = groupSnapshots.put(gamemode, LazySnapshot.of(snapshot));
+        if (previous != null)
+        {
+            previous.release();
+
+            // Its stored data is lost once this slot is written; kept aside if it cannot be decoded.
+            if (!previous.isDecoded() || previous.isCorrupted()) SnapshotsIO.saveIfCorrupted(playerID, group, gamemode, previous);
+        }
+
+        final long size = snapshot.getApproximateSize();
+        final Long previousSize = dirtySnapshots.computeIfAbsent(group, g -> new EnumMap<>(GameMode.class)).put(gamemode, size);
+
+        final long delta = size - (previousSize != null ? previousSize : 0);
+
+        dirtySize += delta;
+        totalDirtySize.addAndGet(delta);
+    }
+
+    /**
+     * Writes to the disk the snapshots saved since the last flush. The writes
+     * are asynchronous.
+     */
+    public void flush()
+    {
+        if (state.get() == State.EVICTED) return;
+        writeDirtySnapshots();
+    }
+
+    /**
+     * Flushes this store a last time and marks it as evicted. Called once
+     * removed from the players manager; an evicted store is never used again.
+     */
+    void evict()
+    {
+        State current;
+
+        do
+        {
+            current = state.get();
+            if (current == State.FLUSHING || current == State.EVICTED) return;
+        }
+        while (!state.compareAndSet(current, State.FLUSHING));
+
+        writeDirtySnapshots();
+        state.set(State.EVICTED);
+        loadLatch.countDown();
+    }
 
-        SnapshotsIO.saveSnapshot(playerID, group, gamemode, snapshot);
+    private void writeDirtySnapshots()
+    {
+        if (dirtySnapshots.isEmpty()) return;
+
+        final Map<String, Map<GameMode, PlayerSnapshot>> toWrite = new HashMap<>();
+
+        dirtySnapshots.forEach((group, gamemodes) -> gamemodes.keySet().forEach(gamemode ->
+        {
+            final PlayerSnapshot snapshot = getSnapshot(group, gamemode);
+            if (snapshot != null)
+                toWrite.computeIfAbsent(group, g -> new EnumMap<>(GameMode.class)).put(gamemode, snapshot);
+        }));
+
+        // Written together, with a single write of the player's container.
+        SnapshotsIO.saveSnapshots(playerID, toWrite);
+
+        dirtySnapshots.clear();
+        totalDirtySize.addAndGet(-dirtySize);
+        dirtySize = 0;
+    }
+
+    /**
+     * @return The approximate size, in bytes, of the snapshots not yet written
+     * to the disk, in all the stores.
+     */
+    public static long getTotalDirtySize()
+    {
+        return totalDirtySize.get();
+    }
+
+    /**
+     * @return The approximate size, in bytes, of the snapshots in this store.
+     */
+    public long getApproximateSize()
+    {
+        long size = 0;
+
+        for (final Map<GameMode, LazySnapshot> groupSnapshots : snapshots.values())
+            for (final LazySnapshot snapshot : groupSnapshots.values())
+                size += snapshot.getApproximateSize();
+
+        return size;
     }
 
     /**
@@ -215,22 +394,137 @@ public class PlayerSnapshotsStore
     }
 
     /**
-     * Queues for the next tick a snapshot update, according to the then-current player
-     * state (i.e. its current gamemode and the group its world is in). If called multiple
-     * times in one single tick, this will trigger only one update on the next tick.
+     * Queues a snapshot update, according to the then-current player state (i.e.
+     * its current gamemode and the group its world is in). If called multiple times
+     * before the update is applied, this will trigger only one update.
+     *
+     * Updates are applied by the players manager within a time budget per tick, so
+     * this may take a few ticks; the player's inventory is locked meanwhile. The
+     * items of the expected snapshot are built in the background in the meantime;
+     * if the expected snapshot changes before the update is applied (e.g. the
+     * player changes group again), the items built for the previous one are
+     * released.
+     *
+     * @param expectedGroup    The group the player is expected to be in when the
+     *                         update is applied.
+     * @param expectedGamemode The gamemode the player is expected to be in.
      */
-    public void applySnapshotFromStateNextTick()
+    public void scheduleApplySnapshotFromState(final String expectedGroup, final GameMode expectedGamemode)
     {
-        // Already scheduled
-        if (nextTickUpdateTask != null) return;
+        // If already scheduled, only the snapshot to prepare may change.
+        if (!applyPending)
+        {
+            applyPending = true;
+            MultipleInventories.get().getPlayersManager().scheduleApply(this);
+        }
 
-        nextTickUpdateTask = RunTask.nextTick(() -> {
-            setChangesBeingApplied(true);
-            applySnapshotFromState();
-            setChangesBeingApplied(false);
+        final Map<GameMode, LazySnapshot> groupSnapshots = snapshots.get(expectedGroup);
+        final LazySnapshot expected = groupSnapshots != null ? groupSnapshots.get(expectedGamemode) : null;
 
-            nextTickUpdateTask = null;
-        });
+        if (expected == preparedSnapshot) return;
+
+        releasePreparedSnapshot();
+        preparedSnapshot = expected;
+
+        if (expected != null)
+            SnapshotsIO.prepareSnapshot(playerID, expected, () -> applyPending && preparedSnapshot == expected);
+    }
+
+    /**
+     * Releases the items built in advance for the planned update, if any.
+     */
+    private void releasePreparedSnapshot()
+    {
+        if (preparedSnapshot != null)
+        {
+            preparedSnapshot.release();
+            preparedSnapshot = null;
+        }
+    }
+
+    /**
+     * Releases the items built in advance for the snapshots of this store,
+     * e.g. when the player logs out.
+     */
+    void releasePreparedSnapshots()
+    {
+        preparedSnapshot = null;
+        snapshots.values().forEach(groupSnapshots -> groupSnapshots.values().forEach(LazySnapshot::release));
+    }
+
+    /**
+     * Applies the queued snapshot update, if there is one.
+     */
+    void applyPendingSnapshot()
+    {
+        if (!applyPending) return;
+        applyPending = false;
+
+        try
+        {
+            // Skipped if the store was evicted in the meantime.
+            if (!transition(State.READY, State.APPLYING)) return;
+
+            try
+            {
+                applySnapshotFromState();
+            }
+            finally
+            {
+                transition(State.APPLYING, State.READY);
+            }
+        }
+        finally
+        {
+            // Its items were consumed if it was the snapshot applied; else they are useless now.
+            releasePreparedSnapshot();
+        }
+    }
+
+    /**
+     * @return {@code true} if a snapshot update is waiting to be applied. The
+     * player's inventory is locked meanwhile.
+     */
+    public boolean isApplyPending()
+    {
+        return applyPending;
+    }
+
+    /**
+     * @return The current lifecycle state of this store.
+     */
+    public State getState()
+    {
+        return state.get();
+    }
+
+    /**
+     * Atomically moves this store from a state to another.
+     *
+     * @param from The expected current state.
+     * @param to   The new state.
+     *
+     * @return {@code true} if the store was in the expected state and moved
+     * to the new one.
+     */
+    boolean transition(final State from, final State to)
+    {
+        return state.compareAndSet(from, to);
+    }
+
+    /**
+     * Waits until this store is loaded. Must never be called from the main
+     * thread, as loads are completed there.
+     *
+     * @param timeoutMillis The maximal time to wait, in milliseconds.
+     *
+     * @return {@code true} if the store is loaded, {@code false} if the
+     * timeout expired first.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public boolean awaitLoaded(final long timeoutMillis) throws InterruptedException
+    {
+        return loadLatch.await(timeoutMillis, TimeUnit.MILLISECONDS) && isDataLoaded();
     }
 
     /**
@@ -238,7 +532,8 @@ public class PlayerSnapshotsStore
      */
     public boolean isDataLoaded()
     {
-        return dataLoaded;
+        final State current = state.get();
+        return current != State.LOADING && current != State.EVICTED;
     }
 
     /**
@@ -247,15 +542,43 @@ public class PlayerSnapshotsStore
      */
     public boolean areChangesBeingApplied()
     {
-        return changesBeingApplied;
+        return state.get() == State.APPLYING;
     }
 
+
     /**
-     * @param changesBeingApplied {@code true} if state save/update is being
-     *                            processed for this player.
+     * The lifecycle of a store.
      */
-    void setChangesBeingApplied(boolean changesBeingApplied)
+    public enum State
     {
-        this.changesBeingApplied = changesBeingApplied;
+        /**
+         * The snapshots are being read from the disk. World-groups and
+         * gamemode changes are refused, as they would cause losses.
+         */
+        LOADING,
+
+        /**
+         * The snapshots are loaded and the store is idle.
+         */
+        READY,
+
+        /**
+         * A snapshot is being applied to the player. Other changes are
+         * refused, avoiding exploits like rapid world or gamemode changes
+         * to duplicate stuff.
+         */
+        APPLYING,
+
+        /**
+         * The store was removed from the players manager, and its last
+         * snapshots are being written.
+         */
+        FLUSHING,
+
+        /**
+         * The store was removed from the players manager and flushed. It must
+         * not be used anymore.
+         */
+        EVICTED
     }
 }
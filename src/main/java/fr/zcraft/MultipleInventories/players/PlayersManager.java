@@ -34,28 +34,52 @@ package fr.zcraft.MultipleInventories.players;
 import fr.zcraft.MultipleInventories.Config;
 import fr.zcraft.MultipleInventories.snaphots.PlayerSnapshot;
 import fr.zcraft.MultipleInventories.quartzlib.core.QuartzComponent;
+import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
 import fr.zcraft.MultipleInventories.quartzlib.tools.runners.RunTask;
 import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
 import org.bukkit.World;
+import org.bukkit.entity.HumanEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityDamageEvent;
+import org.bukkit.event.entity.EntityPickupItemEvent;
+import org.bukkit.event.entity.EntityShootBowEvent;
+import org.bukkit.event.entity.ProjectileLaunchEvent;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
 import org.bukkit.event.player.*;
-import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.projectiles.ProjectileSource;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class PlayersManager extends QuartzComponent implements Listener
 {
-    private final static String DEFAULT_WORLD_GROUP = "default";
+    /**
+     * The loaded stores. Accessed from the main thread and from the
+     * asynchronous pre-login threads.
+     */
+    private final Map<UUID, PlayerSnapshotsStore> players = new ConcurrentHashMap<>();
+
+    /**
+     * The worlds groups. Replaced as a whole on reload, as it is read from
+     * the asynchronous pre-login threads too.
+     */
+    private volatile WorldGroups worldGroups = new WorldGroups(Collections.emptyMap());
 
-    private final Map<UUID, PlayerSnapshotsStore> players = new HashMap<>();
+    private OfflineStoresCache offlineStores = null;
 
-    private final Map<String, Set<String>> worldsGroups = new HashMap<>();
-    private final Map<String, String> reversedWorldGroups = new HashMap<>();
+    private ApplyScheduler applyScheduler = null;
+
+    private BukkitTask flushTask = null;
+    private BukkitTask expireTask = null;
 
 
     @Override
@@ -63,55 +87,79 @@ public class PlayersManager extends QuartzComponent implements Listener
     {
         loadWorldsGroups();
 
+        final long flushInterval = Config.SNAPSHOTS_FLUSH_INTERVAL.get() * 20L;
+        if (flushInterval > 0)
+            flushTask = RunTask.timer(this::flushAll, flushInterval, flushInterval);
+
+        offlineStores = new OfflineStoresCache(
+                Config.OFFLINE_STORES_CACHE_PLAYERS.get(),
+                Config.OFFLINE_STORES_CACHE_SIZE.get() * 1024L * 1024L,
+                Config.OFFLINE_STORES_CACHE_EXPIRY.get() * 1000L
+        );
+
+        expireTask = RunTask.timer(offlineStores::expire, 10 * 20L, 10 * 20L);
+
+        applyScheduler = new ApplyScheduler(Config.SNAPSHOTS_APPLY_TIME_BUDGET.get());
+        applyScheduler.start();
+
         // The snapshot IO needs the players manager, so if this is executed directly in the enable method,
         // the import will crash on reload.
         RunTask.nextTick(() -> Bukkit.getOnlinePlayers().forEach(this::getStore));
     }
 
+    @Override
+    protected void onDisable()
+    {
+        shutdown();
+    }
+
     /**
-     * (Re)loads the worlds groups from the configuration.
+     * Stops the periodic tasks, then queues the writes of all the snapshots
+     * still in memory. Must be called while the snapshots I/O worker is still
+     * running; see {@link MultipleInventories#onPluginDisable}. Calling it
+     * again does nothing more.
      */
-    public void loadWorldsGroups()
+    public void shutdown()
     {
-        worldsGroups.clear();
-        reversedWorldGroups.clear();
+        if (flushTask != null)
+        {
+            flushTask.cancel();
+            flushTask = null;
+        }
 
-        Config.WORLD_GROUPS.forEach((group_name, worlds_names) ->
+        if (expireTask != null)
         {
-            final Set<String> worlds = new HashSet<>();
+            expireTask.cancel();
+            expireTask = null;
+        }
 
-            for (final Object world : worlds_names)
-            {
-                worlds.add(world.toString());
-                reversedWorldGroups.put(world.toString(), group_name);
-            }
+        if (applyScheduler != null) applyScheduler.stop();
 
-            worldsGroups.put(group_name, worlds);
-        });
+        flushAll();
 
-        // We store non-listed worlds in the default group
-        Bukkit.getWorlds().forEach(this::registerWorldInDefault);
+        if (offlineStores != null) offlineStores.clear();
     }
 
     /**
-     * Registers a world in the default group, if not already in a group. Used
-     * for unknown worlds at startup, and for worlds created/loaded during the
-     * game.
+     * (Re)loads the worlds groups from the configuration.
      *
-     * @param world The world.
+     * Worlds can be listed by name, or using a glob pattern (e.g. {@code
+     * dungeon_*}) or a regular expression prefixed by {@code regex:} (e.g.
+     * {@code regex:arena_[0-9]+}), for worlds created dynamically.
      */
-    private void registerWorldInDefault(World world)
+    public void loadWorldsGroups()
     {
-        if (!reversedWorldGroups.containsKey(world.getName()))
-        {
-            if (!worldsGroups.containsKey(DEFAULT_WORLD_GROUP))
-            {
-                worldsGroups.put(DEFAULT_WORLD_GROUP, new HashSet<>());
-            }
+        final Map<String, List<?>> groups = new LinkedHashMap<>();
+        Config.WORLD_GROUPS.forEach((group, worlds) -> groups.put(group, (List<?>) worlds));
+
+        final WorldGroups loadedGroups = new WorldGroups(groups);
 
-            worldsGroups.get(DEFAULT_WORLD_GROUP).add(world.getName());
-            reversedWorldGroups.put(world.getName(), DEFAULT_WORLD_GROUP);
+        for (final String invalidEntry : loadedGroups.getInvalidEntries())
+        {
+            PluginLogger.error("Invalid world pattern in the world groups, ignoring it: {0}", invalidEntry);
         }
+
+        worldGroups = loadedGroups;
     }
 
     /**
@@ -125,13 +173,27 @@ public class PlayersManager extends QuartzComponent implements Listener
      */
     public PlayerSnapshotsStore getStore(final UUID playerID)
     {
-        if (players.containsKey(playerID))
-            return players.get(playerID);
+        final PlayerSnapshotsStore existing = players.get(playerID);
+        if (existing != null) return existing;
+
+        // The player may have logged out recently.
+        final PlayerSnapshotsStore cached = offlineStores != null ? offlineStores.take(playerID) : null;
+        if (cached != null)
+        {
+            final PlayerSnapshotsStore concurrent = players.putIfAbsent(playerID, cached);
+            if (concurrent == null) return cached;
+
+            cached.evict();
+            return concurrent;
+        }
 
         final PlayerSnapshotsStore store = new PlayerSnapshotsStore(playerID);
-        store.loadSnapshots();
 
-        players.put(playerID, store);
+        // Another thread may have registered a store for this player in the meantime.
+        final PlayerSnapshotsStore concurrent = players.putIfAbsent(playerID, store);
+        if (concurrent != null) return concurrent;
+
+        store.loadSnapshots();
 
         return store;
     }
@@ -155,11 +217,14 @@ public class PlayersManager extends QuartzComponent implements Listener
      * The store will be re-loaded the next time {@link #getStore(UUID)}
      * is called.
      *
+     * Snapshots not yet written are flushed first.
+     *
      * @param playerID The player's UUID.
      */
     public void unloadStore(final UUID playerID)
     {
-        players.remove(playerID);
+        final PlayerSnapshotsStore store = players.remove(playerID);
+        if (store != null) store.evict();
     }
 
     /**
@@ -174,6 +239,62 @@ public class PlayersManager extends QuartzComponent implements Listener
         unloadStore(player.getUniqueId());
     }
 
+    /**
+     * Queues a store for its snapshot to be applied, within the time budget
+     * per tick.
+     *
+     * @param store The store.
+     */
+    void scheduleApply(final PlayerSnapshotsStore store)
+    {
+        applyScheduler.schedule(store);
+    }
+
+    /**
+     * @return The amount of snapshot updates waiting to be applied.
+     */
+    public int getPendingAppliesCount()
+    {
+        return applyScheduler != null ? applyScheduler.getQueueSize() : 0;
+    }
+
+    /**
+     * @return The cache keeping the stores of the players who logged out
+     * recently.
+     */
+    public OfflineStoresCache getOfflineStoresCache()
+    {
+        return offlineStores;
+    }
+
+    /**
+     * Writes to the disk all the snapshots saved in memory since the last
+     * flush. Called periodically, and when the plugin is disabled.
+     */
+    public void flushAll()
+    {
+        players.values().forEach(PlayerSnapshotsStore::flush);
+    }
+
+    /**
+     * Flushes all the stores if the snapshots waiting to be written take more
+     * memory than allowed, or after each save if the periodic flush is
+     * disabled.
+     */
+    private void flushIfNeeded(final PlayerSnapshotsStore store)
+    {
+        if (flushTask == null)
+        {
+            store.flush();
+            return;
+        }
+
+        final long maxDirtySize = Config.SNAPSHOTS_MAX_DIRTY_SIZE.get() * 1024L * 1024L;
+
+        if (PlayerSnapshotsStore.getTotalDirtySize() > maxDirtySize)
+            flushAll();
+    }
+
     /**
      * @param world A world.
      *
@@ -181,17 +302,30 @@ public class PlayersManager extends QuartzComponent implements Listener
      */
     public String getGroupForWorld(final World world)
     {
-        return reversedWorldGroups.get(world.getName());
+        return worldGroups.resolve(world.getUID(), world.getName());
     }
 
     /**
      * @param group A group name (case sensitive).
      *
-     * @return The worlds names in this group (read-only).
+     * @return The worlds names in this group (read-only): the worlds listed by
+     * name in the configuration, and the loaded worlds in this group.
      */
     public Set<String> getWorldsInGroup(final String group)
     {
-        return Collections.unmodifiableSet(worldsGroups.get(group));
+        final Set<String> worlds = getWorldsGroups().get(group);
+        return worlds != null ? worlds : Collections.emptySet();
+    }
+
+    /**
+     * Unlike {@link #getWorldGroupsNames()}, this can be called from any
+     * thread.
+     *
+     * @return The configured groups names, and the default group (read-only).
+     */
+    public Set<String> getConfiguredGroups()
+    {
+        return worldGroups.getGroups();
     }
 
     /**
@@ -199,21 +333,30 @@ public class PlayersManager extends QuartzComponent implements Listener
      */
     public Set<String> getWorldGroupsNames()
     {
-        return Collections.unmodifiableSet(worldsGroups.keySet());
+        return getWorldsGroups().keySet();
     }
 
     /**
+     * Lists the worlds in each group: the worlds listed by name in the
+     * configuration, and the loaded worlds, resolved to their group (for the
+     * worlds matched by patterns, or in the default group).
+     *
      * @return A read-only map containing the groups.
      */
     public Map<String, Set<String>> getWorldsGroups()
     {
+        final WorldGroups currentGroups = worldGroups;
         final Map<String, Set<String>> groups = new HashMap<>();
 
-        for (Map.Entry<String, Set<String>> entry : worldsGroups.entrySet())
+        currentGroups.getNamedWorldsByGroup().forEach((group, worlds) -> groups.put(group, new TreeSet<>(worlds)));
+
+        for (final World world : Bukkit.getWorlds())
         {
-            groups.put(entry.getKey(), Collections.unmodifiableSet(entry.getValue()));
+            groups.computeIfAbsent(currentGroups.resolve(world.getUID(), world.getName()), group -> new TreeSet<>()).add(world.getName());
         }
 
+        groups.replaceAll((group, worlds) -> Collections.unmodifiableSet(worlds));
+
         return Collections.unmodifiableMap(groups);
     }
 
@@ -238,14 +381,21 @@ public class PlayersManager extends QuartzComponent implements Listener
         if (oldGroup.equals(newGroup)) return true;
 
         final PlayerSnapshotsStore store = getStore(player);
-        if (!store.isDataLoaded() || store.areChangesBeingApplied())
+        if (store.getState() != PlayerSnapshotsStore.State.READY)
             return false;
 
+        // An update is already queued: the inventory is locked since the previous state was saved,
+        // and the update will use the then-current state when applied.
+        if (store.isApplyPending())
+            return true;
+
         // In very rare cases (especially with Essentials), the gamemode can be null.
         final GameMode gamemode = player.getGameMode() != null && Config.PER_GAMEMODE_INVENTORIES.get() ? player.getGameMode() : GameMode.SURVIVAL;
 
         store.saveSnapshot(oldGroup, gamemode, PlayerSnapshot.snap(player, isRespawn));
-        store.applySnapshotFromStateNextTick();
+        store.scheduleApplySnapshotFromState(newGroup, player.getGameMode());
+
+        flushIfNeeded(store);
 
         return true;
     }
@@ -266,13 +416,20 @@ public class PlayersManager extends QuartzComponent implements Listener
             return true;
 
         final PlayerSnapshotsStore store = getStore(player);
-        if (!store.isDataLoaded() || store.areChangesBeingApplied())
+        if (store.getState() != PlayerSnapshotsStore.State.READY)
             return false;
 
+        // An update is already queued: the inventory is locked since the previous state was saved,
+        // and the update will use the then-current state when applied.
+        if (store.isApplyPending())
+            return true;
+
         final String group = getGroupForWorld(player.getWorld());
 
         store.saveSnapshot(group, oldGameMode, PlayerSnapshot.snap(player));
-        store.applySnapshotFromStateNextTick();
+        store.scheduleApplySnapshotFromState(group, newGameMode);
+
+        flushIfNeeded(store);
 
         return true;
     }
@@ -281,18 +438,25 @@ public class PlayersManager extends QuartzComponent implements Listener
 
     /* **  EVENT HANDLERS  ** */
 
+    /**
+     * Moves the store of a player logging out to the offline stores cache,
+     * after having flushed it. It will be unloaded when evicted from the
+     * cache, unless the player logs in again before.
+     *
+     * @param player The player.
+     */
     private void unloadStoreLater(final Player player)
     {
         final UUID playerID = player.getUniqueId();
 
-        RunTask.later(() ->
-        {
-            final Player player1 = Bukkit.getPlayer(playerID);
-            if (player1 == null || !player1.isOnline())
-            {
-                unloadStore(playerID);
-            }
-        }, 60 * 20L);
+        final PlayerSnapshotsStore store = players.remove(playerID);
+        if (store == null) return;
+
+        // The player must leave with the inventory of the group he is in.
+        store.applyPendingSnapshot();
+        store.releasePreparedSnapshots();
+        store.flush();
+        offlineStores.put(playerID, store);
     }
 
 
@@ -301,10 +465,32 @@ public class PlayersManager extends QuartzComponent implements Listener
     {
         if (ev.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED)
         {
-            getStore(ev.getUniqueId());
+            final PlayerSnapshotsStore store = getStore(ev.getUniqueId());
+
+            // This event is called asynchronously, so we can wait here for the snapshots to be loaded, and
+            // have the player join with its data ready. Loads are completed on the main thread, so we never
+            // wait if this is (unusually) called from there.
+            final long loginWait = Config.SNAPSHOTS_LOGIN_WAIT.get();
+            if (loginWait > 0 && !Bukkit.isPrimaryThread())
+            {
+                try
+                {
+                    store.awaitLoaded(loginWait);
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
     }
 
+    @EventHandler (priority = EventPriority.MONITOR)
+    public void onPlayerJoin(final PlayerJoinEvent ev)
+    {
+        getStore(ev.getPlayer()).decodeSnapshotsInBackground();
+    }
+
     @EventHandler (priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onPlayerLogout(final PlayerQuitEvent ev)
     {
@@ -338,9 +524,132 @@ public class PlayersManager extends QuartzComponent implements Listener
     }
 
 
+    /**
+     * @param player A player.
+     *
+     * @return {@code true} if the player's inventory is locked, because a
+     * snapshot update is waiting to be applied.
+     */
+    private boolean isInventoryLocked(final HumanEntity player)
+    {
+        final PlayerSnapshotsStore store = players.get(player.getUniqueId());
+        return store != null && store.isApplyPending();
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onInventoryClick(final InventoryClickEvent ev)
+    {
+        if (isInventoryLocked(ev.getWhoClicked())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onInventoryDrag(final InventoryDragEvent ev)
+    {
+        if (isInventoryLocked(ev.getWhoClicked())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onItemDrop(final PlayerDropItemEvent ev)
+    {
+        if (isInventoryLocked(ev.getPlayer())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onItemPickup(final EntityPickupItemEvent ev)
+    {
+        if (ev.getEntity() instanceof HumanEntity && isInventoryLocked((HumanEntity) ev.getEntity())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onHandItemsSwap(final PlayerSwapHandItemsEvent ev)
+    {
+        if (isInventoryLocked(ev.getPlayer())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onItemConsume(final PlayerItemConsumeEvent ev)
+    {
+        if (isInventoryLocked(ev.getPlayer())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onBlockPlace(final BlockPlaceEvent ev)
+    {
+        if (isInventoryLocked(ev.getPlayer())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onInteract(final PlayerInteractEvent ev)
+    {
+        if (isInventoryLocked(ev.getPlayer())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onInteractEntity(final PlayerInteractEntityEvent ev)
+    {
+        if (isInventoryLocked(ev.getPlayer())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onInteractAtEntity(final PlayerInteractAtEntityEvent ev)
+    {
+        if (isInventoryLocked(ev.getPlayer())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onBucketEmpty(final PlayerBucketEmptyEvent ev)
+    {
+        if (isInventoryLocked(ev.getPlayer())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onBucketFill(final PlayerBucketFillEvent ev)
+    {
+        if (isInventoryLocked(ev.getPlayer())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onShootBow(final EntityShootBowEvent ev)
+    {
+        if (ev.getEntity() instanceof HumanEntity && isInventoryLocked((HumanEntity) ev.getEntity())) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onProjectileLaunch(final ProjectileLaunchEvent ev)
+    {
+        final ProjectileSource shooter = ev.getEntity().getShooter();
+        if (shooter instanceof HumanEntity && isInventoryLocked((HumanEntity) shooter)) ev.setCancelled(true);
+    }
+
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onItemDamage(final PlayerItemDamageEvent ev)
+    {
+        if (isInventoryLocked(ev.getPlayer())) ev.setCancelled(true);
+    }
+
+    /**
+     * A player taking damage may die, and drop the inventory that was already
+     * saved in the snapshot of the previous group: the pending update is
+     * applied right away, before the damage (and a possible death) is
+     * processed by the server and other plugins.
+     */
+    @EventHandler (priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onPlayerDamage(final EntityDamageEvent ev)
+    {
+        if (!(ev.getEntity() instanceof Player)) return;
+
+        final PlayerSnapshotsStore store = players.get(ev.getEntity().getUniqueId());
+        if (store != null && store.isApplyPending()) store.applyPendingSnapshot();
+    }
+
+
+    /**
+     * Forgets a world when it is unloaded, so temporary worlds don't stay in
+     * the groups cache forever.
+     */
     @EventHandler (priority = EventPriority.MONITOR, ignoreCancelled = true)
-    public void onWorldLoaded(WorldLoadEvent ev)
+    public void onWorldUnloaded(WorldUnloadEvent ev)
     {
-        registerWorldInDefault(ev.getWorld());
+        worldGroups.forget(ev.getWorld().getUID());
     }
 }
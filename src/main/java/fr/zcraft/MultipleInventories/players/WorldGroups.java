@@ -0,0 +1,280 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.players;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ * The worlds groups, as loaded from the configuration.
+ *
+ * Worlds can be listed by name, or using a glob pattern (e.g. {@code
+ * dungeon_*}) or a regular expression prefixed by {@code regex:} (e.g.
+ * {@code regex:arena_[0-9]+}), for worlds created dynamically. Worlds listed
+ * by name are checked first, then the patterns, in the configuration order.
+ * Other worlds are in the default group.
+ *
+ * Instances are immutable, except for the cache of resolved worlds, and are
+ * replaced as a whole when the configuration is reloaded. This class is
+ * thread-safe.
+ */
+final class WorldGroups
+{
+    static final String DEFAULT_GROUP = "default";
+
+    /**
+     * Prefix of the entries to be read as regular expressions.
+     */
+    private static final String REGEX_PREFIX = "regex:";
+
+    /**
+     * The worlds names listed in each group, in the configuration order.
+     */
+    private final Map<String, Set<String>> namedWorldsByGroup;
+
+    /**
+     * The configured groups, and the default group.
+     */
+    private final Set<String> groups;
+
+    /**
+     * The group of each world listed by name.
+     */
+    private final Map<String, String> namedWorlds;
+
+    /**
+     * The groups of the worlds matching a pattern, in the configuration order.
+     */
+    private final List<Map.Entry<Pattern, String>> patterns;
+
+    /**
+     * The entries ignored because they are invalid regular expressions, with
+     * the reason why.
+     */
+    private final List<String> invalidEntries;
+
+    /**
+     * The resolved group of each world, by world UUID.
+     */
+    private final Map<UUID, String> resolvedWorlds = new ConcurrentHashMap<>();
+
+
+    /**
+     * @param groups The worlds names and patterns, per group.
+     */
+    WorldGroups(final Map<String, ? extends Collection<?>> groups)
+    {
+        final Map<String, Set<String>> namedWorldsByGroup = new LinkedHashMap<>();
+        final Map<String, String> namedWorlds = new HashMap<>();
+        final List<Map.Entry<Pattern, String>> patterns = new ArrayList<>();
+        final List<String> invalidEntries = new ArrayList<>();
+
+        groups.forEach((group, entries) ->
+        {
+            final Set<String> names = new TreeSet<>();
+
+            for (final Object entry : entries)
+            {
+                final String worldName = entry.toString();
+
+                try
+                {
+                    final Pattern pattern = compilePattern(worldName);
+
+                    if (pattern != null)
+                    {
+                        patterns.add(new AbstractMap.SimpleImmutableEntry<>(pattern, group));
+                    }
+                    else
+                    {
+                        namedWorlds.put(worldName, group);
+                        names.add(worldName);
+                    }
+                }
+                catch (final PatternSyntaxException e)
+                {
+                    invalidEntries.add(worldName + " (" + group + "): " + e.getDescription());
+                }
+            }
+
+            namedWorldsByGroup.put(group, Collections.unmodifiableSet(names));
+        });
+
+        final Set<String> groupsNames = new HashSet<>(namedWorldsByGroup.keySet());
+        groupsNames.add(DEFAULT_GROUP);
+
+        this.namedWorldsByGroup = Collections.unmodifiableMap(namedWorldsByGroup);
+        this.groups = Collections.unmodifiableSet(groupsNames);
+        this.namedWorlds = Collections.unmodifiableMap(namedWorlds);
+        this.patterns = Collections.unmodifiableList(patterns);
+        this.invalidEntries = Collections.unmodifiableList(invalidEntries);
+    }
+
+    /**
+     * @param entry A world name, glob pattern or regular expression, as
+     *              listed in the configuration.
+     *
+     * @return The compiled pattern, or {@code null} if this is a plain world
+     * name.
+     * @throws PatternSyntaxException if the regular expression is invalid.
+     */
+    static Pattern compilePattern(final String entry)
+    {
+        if (entry.startsWith(REGEX_PREFIX))
+        {
+            return Pattern.compile(entry.substring(REGEX_PREFIX.length()));
+        }
+
+        if (entry.indexOf('*') < 0 && entry.indexOf('?') < 0)
+        {
+            return null;
+        }
+
+        final StringBuilder regex = new StringBuilder();
+        final StringBuilder literal = new StringBuilder();
+
+        for (final char c : entry.toCharArray())
+        {
+            if (c == '*' || c == '?')
+            {
+                if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+                literal.setLength(0);
+
+                regex.append(c == '*' ? ".*" : ".");
+            }
+            else
+            {
+                literal.append(c);
+            }
+        }
+
+        if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Finds the group of a world.
+     *
+     * @param worldName The world name.
+     *
+     * @return The group, or the default group if the world is not listed or
+     * matched by any pattern.
+     */
+    String resolve(final String worldName)
+    {
+        final String group = namedWorlds.get(worldName);
+        if (group != null) return group;
+
+        for (final Map.Entry<Pattern, String> pattern : patterns)
+        {
+            if (pattern.getKey().matcher(worldName).matches())
+            {
+                return pattern.getValue();
+            }
+        }
+
+        return DEFAULT_GROUP;
+    }
+
+    /**
+     * Finds the group of a world, caching the result.
+     *
+     * @param worldID   The world UUID.
+     * @param worldName The world name.
+     *
+     * @return The group.
+     */
+    String resolve(final UUID worldID, final String worldName)
+    {
+        return resolvedWorlds.computeIfAbsent(worldID, id -> resolve(worldName));
+    }
+
+    /**
+     * Removes a world from the cache, e.g. when it is unloaded.
+     *
+     * @param worldID The world UUID.
+     */
+    void forget(final UUID worldID)
+    {
+        resolvedWorlds.remove(worldID);
+    }
+
+    /**
+     * @return The amount of worlds in the cache.
+     */
+    int getResolvedWorldsCount()
+    {
+        return resolvedWorlds.size();
+    }
+
+    /**
+     * @return The configured groups names, and the default group (read-only).
+     */
+    Set<String> getGroups()
+    {
+        return groups;
+    }
+
+    /**
+     * @return The configured groups, with the worlds listed by name in each
+     * (read-only).
+     */
+    Map<String, Set<String>> getNamedWorldsByGroup()
+    {
+        return namedWorldsByGroup;
+    }
+
+    /**
+     * @return The entries ignored because they are invalid regular
+     * expressions, with the reason why.
+     */
+    List<String> getInvalidEntries()
+    {
+        return invalidEntries;
+    }
+}
@@ -34,6 +34,7 @@ import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
 import fr.zcraft.MultipleInventories.quartzlib.tools.items.ItemUtils;
 import fr.zcraft.MultipleInventories.quartzlib.tools.reflection.NMSException;
 import fr.zcraft.MultipleInventories.quartzlib.tools.reflection.Reflection;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -57,6 +58,9 @@ public abstract class NBT {
     /* ========== Item utilities ========== */
     static Class<?> CB_CRAFT_ITEM_META = null;
 
+    private static MethodHandle MC_ITEM_STACK_GET_TAG = null;
+    private static MethodHandle MC_ITEM_STACK_SET_TAG = null;
+
     private NBT() {
     }
 
@@ -270,14 +274,27 @@ public abstract class NBT {
         }
     }
 
-    private static void init() throws NMSException {
+    /**
+     * Resolves the NMS classes and methods used to access the NBT data.
+     * <p>This is done on first use, but can be called beforehand (e.g. when
+     * the plugin is enabled) so the first items read don't pay for it.</p>
+     *
+     * @throws NMSException if the NMS classes cannot be found.
+     */
+    public static void init() throws NMSException {
         if (MC_ITEM_STACK != null) {
             return; // Already initialized
         }
 
-        MC_ITEM_STACK = getMinecraftClass("world.item", "ItemStack");
+        final Class<?> mcItemStack = getMinecraftClass("world.item", "ItemStack");
         MC_NBT_TAG_COMPOUND = getMinecraftClass("nbt", "NBTTagCompound");
         CB_CRAFT_ITEM_META = getCraftBukkitClass("inventory.CraftMetaItem");
+
+        // 1.20: w, 1.19: v, 1.18: t, 1.17: getTag, older: a.
+        MC_ITEM_STACK_GET_TAG = NBTAccessors.findGetter(mcItemStack, MC_NBT_TAG_COMPOUND, "w", "v", "t", "getTag", "a");
+        MC_ITEM_STACK_SET_TAG = NBTAccessors.findSetter(mcItemStack, "setTag", MC_NBT_TAG_COMPOUND);
+
+        MC_ITEM_STACK = mcItemStack;
     }
 
     /**
@@ -298,57 +315,42 @@ public abstract class NBT {
             return null;
         }
 
-        try {
-            Object tagCompound;
+        if (MC_ITEM_STACK_GET_TAG != null) {
             try {
-                //1.20
-                tagCompound = Reflection.call(mcItemStack.getClass(), mcItemStack, "w");
-            } catch (Exception e) {
-                //1.19
-                try {
-                    tagCompound = Reflection.call(mcItemStack.getClass(), mcItemStack, "v");
-                } catch (Exception e1) {
-                    //1.18
-                    try {
-                        tagCompound = Reflection.call(mcItemStack.getClass(), mcItemStack, "t");
-                    } catch (Exception e2) {
-                        //1.17
-                        try {
-                            tagCompound = Reflection.call(mcItemStack.getClass(), mcItemStack, "getTag");
-                        } catch (Exception e3) {
-                            tagCompound = Reflection.call(mcItemStack.getClass(), mcItemStack, "a");
-                        }
-                    }
+                Object tagCompound = (Object) MC_ITEM_STACK_GET_TAG.invokeExact(mcItemStack);
+
+                if (tagCompound == null && MC_ITEM_STACK_SET_TAG != null) {
+                    tagCompound = Reflection.instantiate(MC_NBT_TAG_COMPOUND);
+                    MC_ITEM_STACK_SET_TAG.invokeExact(mcItemStack, tagCompound);
                 }
-            }
 
-            if (tagCompound == null) {
-                tagCompound = Reflection.instantiate(MC_NBT_TAG_COMPOUND);
-                Reflection.call(MC_ITEM_STACK, mcItemStack, "setTag", tagCompound);
+                if (tagCompound != null) {
+                    return tagCompound;
+                }
+            } catch (Throwable ignored) {
+                // Falls back to the older method below.
             }
-            return tagCompound;
+        }
 
-        } catch (Exception exc) {
-            //Older method
-            try {
-                Object tag = Reflection.getFieldValue(MC_ITEM_STACK, mcItemStack, "tag");
-
-                if (tag == null) {
-                    tag = Reflection.instantiate(MC_NBT_TAG_COMPOUND);
-
-                    try {
-                        Reflection.call(MC_ITEM_STACK, mcItemStack, "setTag", tag);
-                    } catch (NoSuchMethodException e) {
-                        // If the set method change—more resilient,
-                        // as the setTag will only update the field without any kind of callback.
-                        Reflection.setFieldValue(MC_ITEM_STACK, mcItemStack, "tag", tag);
-                    }
-                }
+        //Older method
+        try {
+            Object tag = Reflection.getFieldValue(MC_ITEM_STACK, mcItemStack, "tag");
+
+            if (tag == null) {
+                tag = Reflection.instantiate(MC_NBT_TAG_COMPOUND);
 
-                return tag;
-            } catch (Exception ex) {
-                throw new NMSException("Unable to retrieve NBT tag from item", ex);
+                try {
+                    Reflection.call(MC_ITEM_STACK, mcItemStack, "setTag", tag);
+                } catch (NoSuchMethodException e) {
+                    // If the set method change—more resilient,
+                    // as the setTag will only update the field without any kind of callback.
+                    Reflection.setFieldValue(MC_ITEM_STACK, mcItemStack, "tag", tag);
+                }
             }
+
+            return tag;
+        } catch (Exception ex) {
+            throw new NMSException("Unable to retrieve NBT tag from item", ex);
         }
     }
 
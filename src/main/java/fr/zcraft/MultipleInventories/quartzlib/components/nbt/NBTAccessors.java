@@ -0,0 +1,133 @@
+/*
+ * Copyright or © or Copr. QuartzLib contributors (2015 - 2020)
+ *
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.quartzlib.components.nbt;
+
+import fr.zcraft.MultipleInventories.quartzlib.tools.reflection.Reflection;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * Caches the accessors to the NMS NBT classes.
+ *
+ * <p>The names of the NMS methods change with the Minecraft versions, so
+ * several candidates are tried. This is done once per class, and the
+ * working method is kept as a {@link MethodHandle}, instead of looking it
+ * up (and failing on the other candidates) on every call.</p>
+ */
+final class NBTAccessors {
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+
+    /**
+     * The method returning the type id of a tag (1.20: "b", 1.18: "a").
+     */
+    static final ClassValue<MethodHandle> TAG_TYPE_ID = getters(byte.class, "b", "a", "getTypeId");
+
+    /**
+     * The method returning the map of a compound tag (1.20: "i", 1.17: "h").
+     */
+    static final ClassValue<MethodHandle> COMPOUND_MAP = getters(Map.class, "i", "h");
+
+    /**
+     * The methods returning the size and the elements of a list tag.
+     */
+    static final ClassValue<MethodHandle> LIST_SIZE = getters(int.class, "size");
+    static final ClassValue<MethodHandle> LIST_GET = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> klass) {
+            final Method method = findMethod(klass, "get", int.class);
+            return method != null ? adapt(method, MethodType.methodType(Object.class, Object.class, int.class)) : null;
+        }
+    };
+
+    private NBTAccessors() {
+    }
+
+    /**
+     * Finds the first of the given no-arguments methods returning the given type.
+     *
+     * @param klass      The class the method belongs to.
+     * @param returnType The expected return type.
+     * @param names      The candidate method names, in order of preference.
+     * @return A handle to the method, adapted to {@code (Object) Object}, or {@code null}
+     *         if none of the candidates exists.
+     */
+    static MethodHandle findGetter(Class<?> klass, Class<?> returnType, String... names) {
+        for (String name : names) {
+            final Method method = findMethod(klass, name);
+            if (method != null && returnType.isAssignableFrom(method.getReturnType())) {
+                return adapt(method, GETTER);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds the given method, returning a handle adapted to {@code (void) Object, Object}.
+     *
+     * @param klass         The class the method belongs to.
+     * @param name          The method name.
+     * @param parameterType The type of the single parameter.
+     * @return A handle to the method, or {@code null} if it does not exist.
+     */
+    static MethodHandle findSetter(Class<?> klass, String name, Class<?> parameterType) {
+        final Method method = findMethod(klass, name, parameterType);
+        return method != null ? adapt(method, MethodType.methodType(void.class, Object.class, Object.class)) : null;
+    }
+
+    private static ClassValue<MethodHandle> getters(Class<?> returnType, String... names) {
+        return new ClassValue<MethodHandle>() {
+            @Override
+            protected MethodHandle computeValue(Class<?> klass) {
+                return findGetter(klass, returnType, names);
+            }
+        };
+    }
+
+    private static Method findMethod(Class<?> klass, String name, Class<?>... parameterTypes) {
+        try {
+            return Reflection.getMethod(klass, name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle adapt(Method method, MethodType type) {
+        try {
+            return MethodHandles.lookup().unreflect(method).asType(type);
+        } catch (IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -31,6 +31,7 @@
 package fr.zcraft.MultipleInventories.quartzlib.components.nbt;
 
 import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
+import fr.zcraft.MultipleInventories.quartzlib.tools.reflection.Reflection;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -228,10 +229,10 @@ public class NBTCompound implements Map<String, Object> {
                     try {
                         // Cannot use Reflection.call here because int is casted as an integer and we need the method
                         // with an int
-                        method = nmsNbtTag.getClass().getMethod("a", String.class, int.class);
+                        method = Reflection.getMethod(nmsNbtTag.getClass(), "a", String.class, int.class);
                         method.invoke(nmsNbtTag, key, value);
                     } catch (Exception e) {
-                        method = nmsNbtTag.getClass().getMethod("setInt", String.class, int.class);
+                        method = Reflection.getMethod(nmsNbtTag.getClass(), "setInt", String.class, int.class);
                         method.invoke(nmsNbtTag, key, value);
                     }
 
@@ -32,8 +32,8 @@ package fr.zcraft.MultipleInventories.quartzlib.components.nbt;
 
 import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
 import fr.zcraft.MultipleInventories.quartzlib.tools.reflection.Reflection;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -76,20 +76,16 @@ enum NBTType {
     }
 
     public static NBTType fromNmsNbtTag(Object nmsNbtTag) {
+        // 1.20: b, 1.18: a, older: getTypeId; resolved once per tag class.
+        final MethodHandle typeIdGetter = NBTAccessors.TAG_TYPE_ID.get(nmsNbtTag.getClass());
+        if (typeIdGetter == null) {
+            throw new NBTException("Unable to retrieve type of nbt tag: no type accessor on " + nmsNbtTag.getClass());
+        }
+
         try {
-            //1.20
-            return fromId((byte) Reflection.call(nmsNbtTag, "b"));
-        } catch (Exception e) {
-            try {
-                //1.18
-                return fromId((byte) Reflection.call(nmsNbtTag, "a"));
-            } catch (Exception e1) {
-                try {
-                    return fromId((byte) Reflection.call(nmsNbtTag, "getTypeId"));
-                } catch (Exception ex) {
-                    throw new NBTException("Unable to retrieve type of nbt tag", ex);
-                }
-            }
+            return fromId((byte) (Object) typeIdGetter.invokeExact(nmsNbtTag));
+        } catch (Throwable ex) {
+            throw new NBTException("Unable to retrieve type of nbt tag", ex);
         }
     }
 
@@ -255,26 +251,27 @@ enum NBTType {
         try {
             switch (getNmsTagFieldName()) {
                 case "map":
-                    //Since 1.17 "map" became "tags"
-                    try {
-                        //1.20
-                        return Reflection.call(nmsNbtTag.getClass(), nmsNbtTag, "i");
-                    } catch (Exception e) {
-                        return Reflection.call(nmsNbtTag.getClass(), nmsNbtTag, "h");
+                    //Since 1.17 "map" became "tags", accessed through "i" (1.20) or "h"
+                    final MethodHandle mapGetter = NBTAccessors.COMPOUND_MAP.get(nmsNbtTag.getClass());
+                    if (mapGetter != null) {
+                        return (Object) mapGetter.invokeExact(nmsNbtTag);
                     }
+                    break;
 
                 case "list":
                     //We recreate the list because there are no getter for the list.
                     //TODO check if in 1.18 a getter is added for this one.
-                    List list = new ArrayList();
+                    final MethodHandle sizeGetter = NBTAccessors.LIST_SIZE.get(nmsNbtTag.getClass());
+                    final MethodHandle elementGetter = NBTAccessors.LIST_GET.get(nmsNbtTag.getClass());
+                    if (sizeGetter == null || elementGetter == null) {
+                        break;
+                    }
 
-                    for (int i = 0; i < (int) Reflection.call(nmsNbtTag.getClass(), nmsNbtTag, "size"); i++) {
-                        //Strange thing of java a call cast int into integer resulting in the impossibility
-                        // to call the method
-                        final Method method = nmsNbtTag.getClass().getMethod("get", int.class);
+                    final int size = (int) (Object) sizeGetter.invokeExact(nmsNbtTag);
+                    final List list = new ArrayList(size);
 
-                        // Cannot use Reflection.call for the same reason as above.
-                        list.add(method.invoke(nmsNbtTag, i));
+                    for (int i = 0; i < size; i++) {
+                        list.add((Object) elementGetter.invokeExact(nmsNbtTag, i));
                     }
                     return list;
                 case "data":
@@ -286,7 +283,7 @@ enum NBTType {
             }
             //Fallback used for data right now don't know if this works
             return Reflection.getFieldValue(nmsNbtTag, getNmsTagFieldName());
-        } catch (Exception exc) {
+        } catch (Throwable exc) {
             //Older versions than 1.17 (fields are no longer accessible in java 17)
             try {
                 return Reflection.getFieldValue(nmsNbtTag, getNmsTagFieldName());
@@ -36,22 +36,36 @@ import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
 import fr.zcraft.MultipleInventories.quartzlib.tools.reflection.Reflection;
 import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
 /**
  * The base class for workers.
  * A worker is a thread that can handle multiple tasks, which are executed in a queue.
+ *
+ * <p>A worker can also run multiple threads (see {@link #getThreadsCount()}). Each thread has its
+ * own queue; queries submitted with a partition key always go to the same thread, so queries
+ * sharing a key are executed in order, while queries with different keys can run in parallel.</p>
  */
 public abstract class Worker extends QuartzComponent {
     /*===== Static API =====*/
     private static final HashMap<Class<? extends Worker>, Worker> runningWorkers = new HashMap();
-    private static final HashMap<Class<? extends WorkerRunnable>, Worker> runnables = new HashMap();
+    /**
+     * The worker of each runnable class, to find the worker of a runnable submitting a query
+     * to the main thread. A runnable class always belongs to the same worker, and instances of
+     * the same class may run concurrently on several threads, so entries are only removed when
+     * their worker is disabled.
+     */
+    private static final Map<Class<? extends WorkerRunnable>, Worker> runnables = new ConcurrentHashMap<>();
     private final String name;
-    private final ArrayDeque<WorkerRunnable> runQueue = new ArrayDeque<>();
     private final WorkerCallbackManager callbackManager;
     private final WorkerMainThreadExecutor mainThreadExecutor;
-    private Thread thread;
+    private final Object idleLock = new Object();
+    private int pendingQueries = 0;
+    private ArrayDeque<WorkerRunnable>[] runQueues;
+    private Thread[] threads;
 
     /**
      * Creates a new worker.
@@ -87,6 +101,36 @@ public abstract class Worker extends QuartzComponent {
         getCallerWorker().internalSubmitQuery(runnable, callback);
     }
 
+    /**
+     * Submits a query without callback, executed after all the queries previously submitted
+     * with the same partition key.
+     *
+     * @param partitionKey The partition key (e.g. a player's UUID).
+     * @param runnable     The query.
+     */
+    protected static void submitQuery(Object partitionKey, WorkerRunnable runnable) {
+        getCallerWorker().internalSubmitQuery(partitionKey, runnable);
+    }
+
+    /**
+     * Submits a query, executed after all the queries previously submitted with the same
+     * partition key.
+     *
+     * @param partitionKey The partition key (e.g. a player's UUID).
+     * @param runnable     The query.
+     * @param callback     The callback, called on the main thread when the query completes.
+     */
+    protected static void submitQuery(Object partitionKey, WorkerRunnable runnable, WorkerCallback callback) {
+        getCallerWorker().internalSubmitQuery(partitionKey, runnable, callback);
+    }
+
+    /**
+     * @return The amount of callbacks of the calling worker ready to be run on the main thread.
+     */
+    protected static int getCallbacksQueueSize() {
+        return getCallerWorker().callbackManager.getQueueSize();
+    }
+
     private static Worker getCallerWorker() {
         Class<? extends Worker> caller = Reflection.getCallerClass(Worker.class);
         if (caller == null) {
@@ -120,33 +164,67 @@ public abstract class Worker extends QuartzComponent {
         return worker;
     }
 
+    /**
+     * Returns the amount of threads this worker should run, read when the worker is enabled.
+     * Override to run more than one thread.
+     *
+     * @return The amount of threads (at least one).
+     */
+    protected int getThreadsCount() {
+        return 1;
+    }
+
+    /**
+     * Returns the maximal time spent running this worker's callbacks on the main thread each
+     * tick, read when the worker is enabled. At least one callback is run each tick, whatever
+     * this budget. Override to change it.
+     *
+     * @return The time budget, in milliseconds.
+     */
+    protected long getCallbacksTimeBudget() {
+        return 5;
+    }
+
     @Override
     public void onEnable() {
-        if (thread != null && thread.isAlive()) {
+        if (threads != null) {
             PluginLogger.warning("Restarting thread '{0}'.", name);
             onDisable();
         }
-        callbackManager.init();
+        callbackManager.init(getCallbacksTimeBudget());
         if (mainThreadExecutor != null) {
             mainThreadExecutor.init();
         }
         runningWorkers.put(getClass(), this);
-        thread = createThread();
-        thread.start();
+
+        final int threadsCount = Math.max(1, getThreadsCount());
+        runQueues = new ArrayDeque[threadsCount];
+        threads = new Thread[threadsCount];
+
+        for (int i = 0; i < threadsCount; i++) {
+            runQueues[i] = new ArrayDeque<>();
+            threads[i] = createThread(i);
+            threads[i].start();
+        }
     }
 
     @Override
     public void onDisable() {
-        thread.interrupt();
+        if (threads != null) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
         callbackManager.exit();
         if (mainThreadExecutor != null) {
             mainThreadExecutor.exit();
         }
-        thread = null;
+        threads = null;
         runningWorkers.remove(getClass());
+        runnables.values().removeIf(worker -> worker == this);
     }
 
-    private void run() {
+    private void run(ArrayDeque<WorkerRunnable> runQueue) {
         WorkerRunnable currentRunnable;
 
         while (!Thread.interrupted()) {
@@ -166,12 +244,51 @@ public abstract class Worker extends QuartzComponent {
             } catch (Throwable ex) {
                 callbackManager.callback(currentRunnable, null, ex);
             }
-            runnables.remove(currentRunnable.getClass());
+
+            synchronized (idleLock) {
+                if (--pendingQueries == 0) {
+                    idleLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until all the queries submitted to this worker are executed. Typically used before
+     * disabling the worker, so queued queries are not lost.
+     *
+     * @param timeoutMillis The maximal time to wait, in milliseconds.
+     * @return {@code true} if all queries were executed, {@code false} if the timeout expired.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     */
+    protected boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        synchronized (idleLock) {
+            while (pendingQueries > 0) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                idleLock.wait(remaining);
+            }
         }
+
+        return true;
     }
 
     private void internalSubmitQuery(WorkerRunnable runnable) {
+        internalSubmitQuery(null, runnable);
+    }
+
+    private void internalSubmitQuery(Object partitionKey, WorkerRunnable runnable) {
         attachRunnable(runnable);
+
+        synchronized (idleLock) {
+            pendingQueries++;
+        }
+
+        final ArrayDeque<WorkerRunnable> runQueue = runQueues[getQueueIndex(partitionKey)];
         synchronized (runQueue) {
             runQueue.add(runnable);
             runQueue.notify();
@@ -179,8 +296,23 @@ public abstract class Worker extends QuartzComponent {
     }
 
     private void internalSubmitQuery(WorkerRunnable runnable, WorkerCallback callback) {
+        internalSubmitQuery(null, runnable, callback);
+    }
+
+    private void internalSubmitQuery(Object partitionKey, WorkerRunnable runnable, WorkerCallback callback) {
         callbackManager.setupCallback(runnable, callback);
-        internalSubmitQuery(runnable);
+        internalSubmitQuery(partitionKey, runnable);
+    }
+
+    /**
+     * Queries without partition key all go to the first queue, so they keep their submission
+     * order, as with a single-threaded worker.
+     */
+    private int getQueueIndex(Object partitionKey) {
+        if (partitionKey == null) {
+            return 0;
+        }
+        return Math.floorMod(partitionKey.hashCode(), runQueues.length);
     }
 
     private <T> Future<T> internalSubmitToMainThread(Callable<T> callable) {
@@ -190,11 +322,12 @@ public abstract class Worker extends QuartzComponent {
         return null;
     }
 
-    private Thread createThread() {
-        return new Thread(getName()) {
+    private Thread createThread(int index) {
+        final ArrayDeque<WorkerRunnable> runQueue = runQueues[index];
+        return new Thread(runQueues.length > 1 ? getName() + "-" + index : getName()) {
             @Override
             public void run() {
-                Worker.this.run();
+                Worker.this.run(runQueue);
             }
         };
     }
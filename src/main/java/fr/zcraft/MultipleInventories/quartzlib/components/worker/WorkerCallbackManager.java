@@ -33,11 +33,12 @@ package fr.zcraft.MultipleInventories.quartzlib.components.worker;
 import fr.zcraft.MultipleInventories.quartzlib.core.QuartzLib;
 import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 import org.bukkit.Bukkit;
 import org.bukkit.scheduler.BukkitTask;
 
 class WorkerCallbackManager implements Runnable {
-    private static final int WATCH_LOOP_DELAY = 5;
+    private static final int WATCH_LOOP_DELAY = 1;
 
     private final HashMap<WorkerRunnable, WorkerRunnableInfo> callbacks;
     private final ArrayDeque<WorkerRunnableInfo> callbackQueue;
@@ -46,13 +47,20 @@ class WorkerCallbackManager implements Runnable {
 
     private BukkitTask selfTask;
 
+    /**
+     * Maximal time spent running callbacks each tick, in nanoseconds.
+     * At least one callback is run each tick, whatever this budget.
+     */
+    private long timeBudget;
+
     public WorkerCallbackManager(String name) {
         callbacks = new HashMap<>();
         callbackQueue = new ArrayDeque<>();
         this.name = name;
     }
 
-    public void init() {
+    public void init(long timeBudgetMillis) {
+        timeBudget = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeBudgetMillis));
         selfTask = Bukkit.getScheduler().runTaskTimer(QuartzLib.getPlugin(), this, 0, WATCH_LOOP_DELAY);
     }
 
@@ -69,7 +77,7 @@ class WorkerCallbackManager implements Runnable {
     public <T> void callback(WorkerRunnable<T> runnable, T result, Throwable exception) {
         WorkerRunnableInfo<T> runnableInfo;
         synchronized (callbacks) {
-            runnableInfo = callbacks.get(runnable);
+            runnableInfo = callbacks.remove(runnable);
         }
         if (runnableInfo == null) {
             return;
@@ -92,17 +100,30 @@ class WorkerCallbackManager implements Runnable {
         }
     }
 
+    /**
+     * @return The amount of callbacks ready to be run on the main thread.
+     */
+    public int getQueueSize() {
+        synchronized (callbackQueue) {
+            return callbackQueue.size();
+        }
+    }
+
     @Override
     public void run() {
+        final long start = System.nanoTime();
         WorkerRunnableInfo currentRunnableInfo;
-        synchronized (callbackQueue) {
-            if (callbackQueue.isEmpty()) {
-                return;
+
+        do {
+            synchronized (callbackQueue) {
+                if (callbackQueue.isEmpty()) {
+                    return;
+                }
+                currentRunnableInfo = callbackQueue.pop();
             }
-            currentRunnableInfo = callbackQueue.pop();
-        }
 
-        currentRunnableInfo.runCallback();
+            currentRunnableInfo.runCallback();
+        } while (System.nanoTime() - start < timeBudget);
     }
 
     private class WorkerRunnableInfo<T> {
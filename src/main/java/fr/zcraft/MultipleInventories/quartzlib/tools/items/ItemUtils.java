@@ -257,7 +257,8 @@ public abstract class ItemUtils {
             Class<?> minecraftItemClass = Reflection.getMinecraftClassByName("Item");
             Class<?> minecraftItemStackClass = Reflection.getMinecraftClassByName("ItemStack");
             Class<?> craftItemStackClass = Reflection.getBukkitClassByName("inventory.CraftItemStack");
-            Object itemStackHandle = craftItemStackClass.getMethod("asNMSCopy", ItemStack.class).invoke(null, item);
+            Object itemStackHandle =
+                    Reflection.getMethod(craftItemStackClass, "asNMSCopy", ItemStack.class).invoke(null, item);
             Object minecraftItem = Reflection.getFieldValue(itemStackHandle, "item");
             List<Method> allMethods = Reflection.findAllMethods(
                     minecraftItemClass, null, String.class, 0, minecraftItemStackClass);
@@ -383,7 +384,7 @@ public abstract class ItemUtils {
     public static Object asNMSCopy(ItemStack item) throws NMSException {
         try {
             Class<?> craftItemStack = Reflection.getBukkitClassByName("inventory.CraftItemStack");
-            return craftItemStack.getMethod("asNMSCopy", ItemStack.class).invoke(null, item);
+            return Reflection.getMethod(craftItemStack, "asNMSCopy", ItemStack.class).invoke(null, item);
         } catch (Exception ex) {
             throw new NMSException("Unable to retreive NMS copy", ex);
         }
@@ -399,7 +400,7 @@ public abstract class ItemUtils {
     public static Object asCraftCopy(ItemStack item) throws NMSException {
         try {
             Class<?> craftItemStack = Reflection.getBukkitClassByName("inventory.CraftItemStack");
-            return craftItemStack.getMethod("asCraftCopy", ItemStack.class).invoke(null, item);
+            return Reflection.getMethod(craftItemStack, "asCraftCopy", ItemStack.class).invoke(null, item);
         } catch (Exception ex) {
             throw new NMSException("Unable to retreive Craft copy", ex);
         }
@@ -419,7 +420,7 @@ public abstract class ItemUtils {
             Class<?> craftItemStack = Reflection.getBukkitClassByName("inventory.CraftItemStack");
             return craftItemStack.isAssignableFrom(item.getClass())
                     ? Reflection.getFieldValue(craftItemStack, item, "handle")
-                    : craftItemStack.getMethod("asNMSCopy", ItemStack.class).invoke(null, item);
+                    : Reflection.getMethod(craftItemStack, "asNMSCopy", ItemStack.class).invoke(null, item);
         } catch (Exception ex) {
             throw new NMSException("Unable to retrieve NMS copy", ex);
         }
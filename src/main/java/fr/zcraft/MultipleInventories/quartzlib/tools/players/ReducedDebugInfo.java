@@ -120,7 +120,7 @@ public final class ReducedDebugInfo {
             final Object handle = NMSNetwork.getPlayerHandle(player);
 
             final Constructor<?> packetConstructor =
-                    packetPlayOutEntityStatusClass.getConstructor(entityClass, byte.class);
+                    Reflection.getConstructor(packetPlayOutEntityStatusClass, entityClass, byte.class);
             final Object packet = packetConstructor
                     .newInstance(handle, reduce ? ENABLE_REDUCED_DEBUG_INFO : DISABLE_REDUCED_DEBUG_INFO);
 
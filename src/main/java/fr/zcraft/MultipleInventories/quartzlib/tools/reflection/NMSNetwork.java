@@ -60,14 +60,14 @@ public final class NMSNetwork {
             craftPlayerClass1 = Reflection.getBukkitClassByName("entity.CraftPlayer");
             entityPlayerClass1 = Reflection.getMinecraft1_17ClassByName("server.level.EntityPlayer");
             packetClass1 = Reflection.getMinecraft1_17ClassByName("network.protocol.Packet");
-            sendPacketMethod1 = ((Class<?>) Reflection.getMinecraft1_17ClassByName("server.network.PlayerConnection"))
-                    .getDeclaredMethod("a", packetClass1);
+            sendPacketMethod1 = Reflection.getMethod(
+                    Reflection.getMinecraft1_17ClassByName("server.network.PlayerConnection"), "a", packetClass1);
             //Was renamed in 1.18 from sendPacket to send but was renamed lambda$15 in the jar...
         } catch (Exception exc) {
             try {
-                sendPacketMethod1 =
-                        ((Class<?>) Reflection.getMinecraft1_17ClassByName("server.network.PlayerConnection"))
-                                .getDeclaredMethod("sendPacket", packetClass1);
+                sendPacketMethod1 = Reflection.getMethod(
+                        Reflection.getMinecraft1_17ClassByName("server.network.PlayerConnection"), "sendPacket",
+                        packetClass1);
 
             } catch (Exception ex) {
                 try {
@@ -75,8 +75,8 @@ public final class NMSNetwork {
                     entityPlayerClass1 = Reflection.getMinecraftClassByName("EntityPlayer");
 
                     packetClass1 = Reflection.getMinecraftClassByName("Packet");
-                    sendPacketMethod1 = ((Class<?>) Reflection.getMinecraftClassByName("PlayerConnection"))
-                            .getDeclaredMethod("sendPacket", packetClass1);
+                    sendPacketMethod1 = Reflection.getMethod(
+                            Reflection.getMinecraftClassByName("PlayerConnection"), "sendPacket", packetClass1);
                 } catch (ClassNotFoundException | NoSuchMethodException e) {
                     throw new IncompatibleMinecraftVersionException(
                             "Cannot load classes needed to send network packets",
@@ -31,6 +31,7 @@
 package fr.zcraft.MultipleInventories.quartzlib.tools.reflection;
 
 import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -41,6 +42,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.bukkit.Bukkit;
 
 
@@ -51,6 +55,14 @@ import org.bukkit.Bukkit;
  * @author Amaury Carrade
  */
 public final class Reflection {
+    /**
+     * The classes, fields, methods and constructors already looked up. Members
+     * are cached already made accessible; lookups that failed are cached as
+     * {@link #MISSING}, so they are not retried either.
+     */
+    private static final ConcurrentMap<Object, Object> CACHE = new ConcurrentHashMap<>();
+    private static final Object MISSING = new Object();
+
     private Reflection() {
     }
 
@@ -92,7 +104,7 @@ public final class Reflection {
      * @throws ClassNotFoundException if no class exists with this name in the Bukkit package.
      */
     public static Class<?> getBukkitClassByName(String name) throws ClassNotFoundException {
-        return Class.forName(getBukkitPackageName() + "." + name);
+        return getClassByName(getBukkitPackageName() + "." + name);
     }
 
     /**
@@ -104,7 +116,7 @@ public final class Reflection {
      * @throws ClassNotFoundException if no class exists with this name in the NMS package.
      */
     public static Class getMinecraft1_17ClassByName(String name) throws ClassNotFoundException {
-        return Class.forName("net.minecraft" + "." + name);
+        return getClassByName("net.minecraft" + "." + name);
     }
 
     /**
@@ -116,7 +128,30 @@ public final class Reflection {
      * @throws ClassNotFoundException if no class exists with this name in the NMS package.
      */
     public static Class getMinecraftClassByName(String name) throws ClassNotFoundException {
-        return Class.forName(getMinecraftPackageName() + "." + name);
+        return getClassByName(getMinecraftPackageName() + "." + name);
+    }
+
+    /**
+     * Returns the {@link Class} with the given fully qualified name. Unlike {@link Class#forName(String)},
+     * the result (or its absence) is cached.
+     *
+     * @param name The class' fully qualified name.
+     * @return The class.
+     * @throws ClassNotFoundException if no class exists with this name.
+     */
+    public static Class<?> getClassByName(String name) throws ClassNotFoundException {
+        final Object klass = CACHE.computeIfAbsent(name, key -> {
+            try {
+                return Class.forName(name);
+            } catch (ClassNotFoundException ex) {
+                return MISSING;
+            }
+        });
+
+        if (klass == MISSING) {
+            throw new ClassNotFoundException(name);
+        }
+        return (Class<?>) klass;
     }
 
 
@@ -167,14 +202,23 @@ public final class Reflection {
      * @throws NoSuchFieldException if the class does not contains any field with this name.
      */
     public static Field getField(Class<?> klass, String name) throws NoSuchFieldException {
-        Field field = klass.getDeclaredField(name);
-        field.setAccessible(true);
-        return field;
+        final Object field = CACHE.computeIfAbsent(new MemberKey(Field.class, klass, name), key -> {
+            try {
+                return accessible(klass.getDeclaredField(name));
+            } catch (NoSuchFieldException | SecurityException ex) {
+                return MISSING;
+            }
+        });
+
+        if (field == MISSING) {
+            throw new NoSuchFieldException(klass.getName() + "." + name);
+        }
+        return (Field) field;
     }
 
     /**
      * Finds the first {@link Field} in the given class with the given type, makes it accessible,
-     * and returns it.
+     * and returns it. The result (or its absence) is cached.
      *
      * @param klass The field's parent class.
      * @param type  The field's class.
@@ -182,15 +226,21 @@ public final class Reflection {
      * @throws NoSuchFieldException if the class does not contains any field with this name.
      */
     public static Field getField(Class<?> klass, Class<?> type) throws NoSuchFieldException {
-        for (Field field : klass.getDeclaredFields()) {
-            if (typeIsAssignableFrom(field.getType(), type)) {
-                field.setAccessible(true);
-                return field;
+        // "<type>" is not a valid field name, so this never collides with the lookups by name.
+        final Object found = CACHE.computeIfAbsent(new MemberKey(Field.class, klass, "<type>", type), key -> {
+            for (Field field : klass.getDeclaredFields()) {
+                if (typeIsAssignableFrom(field.getType(), type)) {
+                    return accessible(field);
+                }
             }
-        }
+            return MISSING;
+        });
 
-        throw new NoSuchFieldException(
-                "Class " + klass.getName() + " does not define any field of type " + type.getName());
+        if (found == MISSING) {
+            throw new NoSuchFieldException(
+                    "Class " + klass.getName() + " does not define any field of type " + type.getName());
+        }
+        return (Field) found;
     }
 
 
@@ -308,17 +358,40 @@ public final class Reflection {
      */
     public static Object call(Class<?> klass, Object instance, String name, Object... parameters)
             throws NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-        Method method;
-        final Class<?>[] types = getTypes(parameters);
+        return getMethod(klass, name, getTypes(parameters)).invoke(instance, parameters);
+    }
 
-        try {
-            method = klass.getMethod(name, types);
-        } catch (NoSuchMethodException | SecurityException ex) {
-            method = klass.getDeclaredMethod(name, types);
-        }
+    /**
+     * Returns the method with the given name and parameter types, made accessible. Public
+     * methods (including inherited ones) are looked up first, then the ones declared by the
+     * class itself. The result is cached.
+     *
+     * @param klass          The method's parent class.
+     * @param name           The method's name.
+     * @param parameterTypes The method's parameter types.
+     * @return The {@link Method}.
+     * @throws NoSuchMethodException if no method with this name and parameters is defined in the class.
+     */
+    public static Method getMethod(Class<?> klass, String name, Class<?>... parameterTypes)
+            throws NoSuchMethodException {
+        final MemberKey methodKey = new MemberKey(Method.class, klass, name, parameterTypes);
+        final Object method = CACHE.computeIfAbsent(methodKey, key -> {
+            try {
+                try {
+                    return accessible(klass.getMethod(name, parameterTypes));
+                } catch (NoSuchMethodException | SecurityException ex) {
+                    return accessible(klass.getDeclaredMethod(name, parameterTypes));
+                }
+            } catch (NoSuchMethodException | SecurityException ex) {
+                return MISSING;
+            }
+        });
 
-        method.setAccessible(true);
-        return method.invoke(instance, parameters);
+        if (method == MISSING) {
+            throw new NoSuchMethodException(
+                    klass.getName() + "." + name + "(" + Arrays.toString(parameterTypes) + ")");
+        }
+        return (Method) method;
     }
 
     /**
@@ -331,12 +404,8 @@ public final class Reflection {
      */
     public static boolean hasMethod(Class<?> klass, String name, Class<?>... parameterTypes) {
         try {
-            try {
-                klass.getMethod(name, parameterTypes);
-            } catch (NoSuchMethodException | SecurityException  ex) {
-                klass.getDeclaredMethod(name, parameterTypes);
-            }
-        } catch (NoSuchMethodException | SecurityException ex) {
+            getMethod(klass, name, parameterTypes);
+        } catch (NoSuchMethodException ex) {
             return false;
         }
         return true;
@@ -477,9 +546,44 @@ public final class Reflection {
     public static <T> T instantiate(Class<T> klass, Object... parameters)
             throws NoSuchMethodException, InstantiationException,
             IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-        Constructor<T> constructor = klass.getDeclaredConstructor(getTypes(parameters));
-        constructor.setAccessible(true);
-        return constructor.newInstance(parameters);
+        return getConstructor(klass, getTypes(parameters)).newInstance(parameters);
+    }
+
+    /**
+     * Returns the constructor of the given class with the given parameter types, regardless
+     * of its visibility, made accessible. The result is cached.
+     *
+     * @param <T>            The type of the object to be instantiated.
+     * @param klass          The class.
+     * @param parameterTypes The constructor's parameter types.
+     * @return The {@link Constructor}.
+     * @throws NoSuchMethodException if no constructor with these parameters types exists.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Constructor<T> getConstructor(Class<T> klass, Class<?>... parameterTypes)
+            throws NoSuchMethodException {
+        final MemberKey constructorKey = new MemberKey(Constructor.class, klass, "<init>", parameterTypes);
+        final Object constructor = CACHE.computeIfAbsent(constructorKey, key -> {
+            try {
+                return accessible(klass.getDeclaredConstructor(parameterTypes));
+            } catch (NoSuchMethodException | SecurityException ex) {
+                return MISSING;
+            }
+        });
+
+        if (constructor == MISSING) {
+            throw new NoSuchMethodException(klass.getName() + ".<init>(" + Arrays.toString(parameterTypes) + ")");
+        }
+        return (Constructor<T>) constructor;
+    }
+
+    private static <M extends AccessibleObject> M accessible(M member) {
+        try {
+            member.setAccessible(true);
+        } catch (RuntimeException ignored) {
+            // The member may still be usable if it is public.
+        }
+        return member;
     }
 
     /**
@@ -618,4 +722,43 @@ public final class Reflection {
     public static Class<?> getClosestType(Class<?> reference, Class<?>... candidates) {
         return getClosestType(reference, Arrays.asList(candidates));
     }
+
+
+    /**
+     * Identifies a member in the cache: its kind, class, name and parameter types.
+     */
+    private static final class MemberKey {
+        private final Class<?> kind;
+        private final Class<?> klass;
+        private final String name;
+        private final Class<?>[] parameterTypes;
+        private final int hashCode;
+
+        MemberKey(Class<?> kind, Class<?> klass, String name, Class<?>... parameterTypes) {
+            this.kind = kind;
+            this.klass = klass;
+            this.name = name;
+            this.parameterTypes = parameterTypes.clone();
+            this.hashCode = Objects.hash(kind, klass, name, Arrays.hashCode(parameterTypes));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MemberKey)) {
+                return false;
+            }
+
+            final MemberKey other = (MemberKey) o;
+            return kind == other.kind && klass == other.klass && name.equals(other.name)
+                    && Arrays.equals(parameterTypes, other.parameterTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
 }
@@ -152,13 +152,13 @@ public final class ListHeaderFooter {
 
             // 1.11-
             try {
-                final Object packet = packetPlayOutPlayerListHeaderFooterClass.getConstructor(iChatBaseComponentClass)
+                final Object packet = Reflection.getConstructor(packetPlayOutPlayerListHeaderFooterClass, iChatBaseComponentClass)
                         .newInstance(serializedHeader);
                 Reflection.setFieldValue(packet, "b", serializedFooter);
 
                 NMSNetwork.sendPacket(player, packet);
             } catch (NoSuchMethodException e) { // 1.12+
-                final Object packet = packetPlayOutPlayerListHeaderFooterClass.getConstructor().newInstance();
+                final Object packet = Reflection.getConstructor(packetPlayOutPlayerListHeaderFooterClass).newInstance();
 
                 Reflection.setFieldValue(packet, "a", serializedHeader);
                 Reflection.setFieldValue(packet, "b", serializedFooter);
@@ -570,8 +570,9 @@ public final class MessageSender {
                 // ignored due to a bug (MC-119145). So, if possible, we use an alternative way of sending them using
                 // the Title packet.
                 if (type == MessageType.ACTION_BAR && packetPlayOutTitleClass != null) {
-                    chatPacket = packetPlayOutTitleClass
-                            .getConstructor(actionBarTitleActionEnum.getClass(), iChatBaseComponentClass)
+                    chatPacket = Reflection
+                            .getConstructor(packetPlayOutTitleClass, actionBarTitleActionEnum.getClass(),
+                                    iChatBaseComponentClass)
                             .newInstance(actionBarTitleActionEnum, componentText);
                 } else {
                     final Enum<?> nmsMessageType = type.getMessagePositionEnumValue();
@@ -581,18 +582,20 @@ public final class MessageSender {
                             // system messages, we need to give a null UUID (else the message
                             // will be filtered if the player disabled chat messages on their
                             // client).
-                            chatPacket = packetPlayOutChatClass
-                                    .getConstructor(iChatBaseComponentClass, chatMessageTypeEnum, UUID.class)
+                            chatPacket = Reflection
+                                    .getConstructor(packetPlayOutChatClass, iChatBaseComponentClass,
+                                            chatMessageTypeEnum, UUID.class)
                                     .newInstance(componentText, nmsMessageType, new UUID(0, 0));
 
                         } catch (NoSuchMethodException ex) {
-                            chatPacket = packetPlayOutChatClass
-                                    .getConstructor(iChatBaseComponentClass, chatMessageTypeEnum)
+                            chatPacket = Reflection
+                                    .getConstructor(packetPlayOutChatClass, iChatBaseComponentClass,
+                                            chatMessageTypeEnum)
                                     .newInstance(componentText, nmsMessageType);
                         }
                     } else {
-                        chatPacket = packetPlayOutChatClass
-                                .getConstructor(iChatBaseComponentClass, byte.class)
+                        chatPacket = Reflection
+                                .getConstructor(packetPlayOutChatClass, iChatBaseComponentClass, byte.class)
                                 .newInstance(componentText, type.getMessagePositionByte());
                     }
                 }
@@ -270,7 +270,7 @@ public final class Titles {
             if (fadeIn >= 0 || stay >= 0 || fadeOut >= 0) {
                 NMSNetwork.sendPacket(
                         connection,
-                        packetPlayOutTitleClass.getConstructor(int.class, int.class, int.class)
+                        Reflection.getConstructor(packetPlayOutTitleClass, int.class, int.class, int.class)
                                 .newInstance(fadeIn, stay, fadeOut)
                 );
             }
@@ -294,7 +294,7 @@ public final class Titles {
         try {
             Object baseComponent = iChatBaseComponentClass
                     .cast(Reflection.call(chatSerializerClass, chatSerializerClass, "a", payload));
-            Object titlePacket = packetPlayOutTitleClass.getConstructor(enumTitleActionClass, iChatBaseComponentClass)
+            Object titlePacket = Reflection.getConstructor(packetPlayOutTitleClass, enumTitleActionClass, iChatBaseComponentClass)
                     .newInstance(action, baseComponent);
 
             NMSNetwork.sendPacket(connection, titlePacket);
@@ -0,0 +1,290 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.snaphots;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.ObjIntConsumer;
+
+
+/**
+ * The items of an inventory snapshot, by slot.
+ *
+ * The items are stored in a dense array, in slot order, along with a bitmap
+ * of the slots holding an item; this is much more compact than a map, both
+ * in memory and on disk. Immutable.
+ */
+final class ItemSlots
+{
+    static final ItemSlots EMPTY = new ItemSlots(0, new long[0], new ItemStackSnapshot[0]);
+
+    /**
+     * The maximal number of slots, more than any inventory holds (the largest
+     * ones, double chests, have 54). Bounds what is read from stored data.
+     */
+    static final int MAX_SIZE = 128;
+
+    /**
+     * The number of slots, i.e. the highest slot holding an item, plus one.
+     */
+    private final int size;
+
+    /**
+     * One bit per slot, set if the slot holds an item.
+     */
+    private final long[] presence;
+
+    /**
+     * The items in the slots flagged in {@link #presence}, in slot order.
+     */
+    private final ItemStackSnapshot[] items;
+
+
+    private ItemSlots(final int size, final long[] presence, final ItemStackSnapshot[] items)
+    {
+        this.size = size;
+        this.presence = presence;
+        this.items = items;
+    }
+
+    /**
+     * @param bySlot The items, by slot; {@code null} for empty slots.
+     *
+     * @return The slots.
+     */
+    static ItemSlots of(final ItemStackSnapshot[] bySlot)
+    {
+        int size = 0;
+        int count = 0;
+
+        for (int slot = 0; slot < bySlot.length; slot++)
+        {
+            if (bySlot[slot] != null)
+            {
+                size = slot + 1;
+                count++;
+            }
+        }
+
+        if (count == 0) return EMPTY;
+
+        final long[] presence = new long[(size + 63) >>> 6];
+        final ItemStackSnapshot[] items = new ItemStackSnapshot[count];
+
+        int index = 0;
+        for (int slot = 0; slot < size; slot++)
+        {
+            if (bySlot[slot] != null)
+            {
+                presence[slot >>> 6] |= 1L << slot;
+                items[index++] = bySlot[slot];
+            }
+        }
+
+        return new ItemSlots(size, presence, items);
+    }
+
+    /**
+     * @param bySlot The items, by slot. Empty slots, and slots out of the
+     *               {@link #MAX_SIZE} bounds, are ignored.
+     *
+     * @return The slots.
+     */
+    static ItemSlots of(final Map<Integer, ItemStackSnapshot> bySlot)
+    {
+        int size = 0;
+        for (final Map.Entry<Integer, ItemStackSnapshot> entry : bySlot.entrySet())
+            if (entry.getValue() != null && isValidSlot(entry.getKey())) size = Math.max(size, entry.getKey() + 1);
+
+        final ItemStackSnapshot[] items = new ItemStackSnapshot[size];
+        bySlot.forEach((slot, item) -> { if (isValidSlot(slot)) items[slot] = item; });
+
+        return of(items);
+    }
+
+    private static boolean isValidSlot(final int slot)
+    {
+        return slot >= 0 && slot < MAX_SIZE;
+    }
+
+    /**
+     * Creates a snapshot of the given inventory contents. See {@link
+     * ItemStackSnapshot#snap(ItemStack)}.
+     *
+     * @param contents The contents of an inventory.
+     *
+     * @return The slots.
+     */
+    static ItemSlots snap(final ItemStack[] contents)
+    {
+        final ItemStackSnapshot[] items = new ItemStackSnapshot[contents.length];
+
+        for (int slot = 0; slot < contents.length; slot++)
+            if (contents[slot] != null && !contents[slot].getType().isAir())
+                items[slot] = ItemStackSnapshot.snap(contents[slot]);
+
+        return of(items);
+    }
+
+    /**
+     * @return The number of slots, i.e. the highest slot holding an item,
+     * plus one.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return The number of items.
+     */
+    int count()
+    {
+        return items.length;
+    }
+
+    /**
+     * @param slot A slot.
+     *
+     * @return The item in this slot, or {@code null} if empty.
+     */
+    ItemStackSnapshot get(final int slot)
+    {
+        if (slot < 0 || slot >= size || (presence[slot >>> 6] & (1L << slot)) == 0) return null;
+
+        // The index of the item is the amount of items in the previous slots.
+        int index = 0;
+        for (int word = 0; word < slot >>> 6; word++) index += Long.bitCount(presence[word]);
+        index += Long.bitCount(presence[slot >>> 6] & ((1L << slot) - 1));
+
+        return items[index];
+    }
+
+    /**
+     * Calls the given consumer for each item, in slot order.
+     *
+     * @param consumer The consumer, receiving the item and its slot.
+     */
+    void forEach(final ObjIntConsumer<ItemStackSnapshot> consumer)
+    {
+        int index = 0;
+        for (int slot = 0; slot < size; slot++)
+            if ((presence[slot >>> 6] & (1L << slot)) != 0)
+                consumer.accept(items[index++], slot);
+    }
+
+    /**
+     * @return The items reconstructed from the snapshots, by slot.
+     */
+    ItemStack[] reconstruct()
+    {
+        final ItemStack[] stacks = new ItemStack[size];
+        forEach((item, slot) -> stacks[slot] = item.reconstruct());
+        return stacks;
+    }
+
+    /**
+     * @return The approximate size of these slots and their items, in bytes.
+     */
+    long getApproximateSize()
+    {
+        long approximateSize = 48 + 8L * presence.length + 8L * items.length;
+        for (final ItemStackSnapshot item : items) approximateSize += item.getApproximateSize();
+
+        return approximateSize;
+    }
+
+    /**
+     * @return {@code true} if the data of all the items was extracted, i.e.
+     * if their approximate size is final.
+     */
+    boolean isCaptured()
+    {
+        for (final ItemStackSnapshot item : items) if (!item.isCaptured()) return false;
+        return true;
+    }
+
+    /**
+     * Writes a binary representation of these slots: their number, the
+     * presence bitmap, then the items.
+     *
+     * @param out The output.
+     *
+     * @throws IOException if the slots cannot be written.
+     */
+    void toBinary(final DataOutput out) throws IOException
+    {
+        VarInts.write(out, size);
+
+        for (int i = 0; i < (size + 7) >>> 3; i++)
+            out.writeByte((int) (presence[i >>> 3] >>> ((i & 7) << 3)));
+
+        for (final ItemStackSnapshot item : items)
+            item.toBinary(out);
+    }
+
+    /**
+     * Reads slots written by {@link #toBinary(DataOutput)}.
+     *
+     * @param in The input.
+     *
+     * @return The slots.
+     * @throws IOException if the data is malformed, including if it holds
+     * more than {@link #MAX_SIZE} slots.
+     */
+    static ItemSlots fromBinary(final DataInput in) throws IOException
+    {
+        final int size = VarInts.read(in);
+        if (size < 0 || size > MAX_SIZE) throw new IOException("Invalid slots count " + size);
+
+        final byte[] bitmap = new byte[(size + 7) >>> 3];
+        in.readFully(bitmap);
+
+        final ItemStackSnapshot[] bySlot = new ItemStackSnapshot[size];
+
+        for (int slot = 0; slot < size; slot++)
+        {
+            if ((bitmap[slot >>> 3] & (1 << (slot & 7))) != 0)
+            {
+                // Items whose material no longer exists are read, but dropped.
+                bySlot[slot] = ItemStackSnapshot.fromBinary(in);
+            }
+        }
+
+        return of(bySlot);
+    }
+}
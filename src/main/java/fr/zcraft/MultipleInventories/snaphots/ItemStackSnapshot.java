@@ -32,25 +32,37 @@
 package fr.zcraft.MultipleInventories.snaphots;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSyntaxException;
-import fr.zcraft.MultipleInventories.MultipleInventories;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import fr.zcraft.MultipleInventories.quartzlib.components.nbt.NBT;
 import fr.zcraft.MultipleInventories.quartzlib.components.nbt.NBTCompound;
 import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
 import fr.zcraft.MultipleInventories.quartzlib.tools.items.ItemStackBuilder;
 import fr.zcraft.MultipleInventories.quartzlib.tools.reflection.NMSException;
+import fr.zcraft.MultipleInventories.quartzlib.tools.reflection.Reflection;
 import org.bukkit.Material;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.Damageable;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 
 /**
@@ -59,10 +71,63 @@ import java.util.Map;
  */
 public class ItemStackSnapshot
 {
+    /* NBT tags types, as used by Minecraft, for the binary format. */
+    private static final byte TAG_END = 0;
+    private static final byte TAG_BYTE = 1;
+    private static final byte TAG_SHORT = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_FLOAT = 5;
+    private static final byte TAG_DOUBLE = 6;
+    private static final byte TAG_BYTE_ARRAY = 7;
+    private static final byte TAG_STRING = 8;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_COMPOUND = 10;
+    private static final byte TAG_INT_ARRAY = 11;
+    private static final byte TAG_LONG_ARRAY = 12;
+
+    /**
+     * List element type used for lists mixing several types (e.g. numbers
+     * loaded from a JSON export, where types had to be guessed). Each element
+     * is then prefixed by its own type.
+     */
+    private static final byte TAG_MIXED = -1;
+
+    /**
+     * {@code true} if the server provides Paper's items serialization
+     * ({@link ItemStack#serializeAsBytes()}). Items are then stored in this
+     * format too, and restored from it when possible.
+     */
+    private static final boolean PAPER_SERIALIZATION = Reflection.hasMethod(ItemStack.class, "serializeAsBytes")
+            && Reflection.hasMethod(ItemStack.class, "deserializeBytes", byte[].class);
+
     private final Material id;
-    private final short durability;
     private final int amount;
-    private final Map<String, Object> nbt;
+
+    /* Extracted from the source item by capture(), for snapshots created by snap(). */
+    private short durability;
+    private Map<String, Object> nbt;
+
+    /**
+     * The item serialized by Paper (including its amount and NBT data), or
+     * {@code null} if it was not captured on Paper.
+     *
+     * Its NBT data is not extracted then: the serialized form is complete,
+     * and {@link #nbt} is {@code null}. Such items can only be restored on
+     * Paper.
+     */
+    private byte[] serialized;
+
+    /**
+     * A private copy of the snapped item, while its data is not extracted
+     * yet. See {@link #snap(ItemStack)}.
+     */
+    private volatile ItemStack source;
+
+    /**
+     * Lazily computed, see {@link #hashCode()}.
+     */
+    private int hash = 0;
 
 
     /**
@@ -97,38 +162,85 @@ public class ItemStackSnapshot
      * use.
      */
     public ItemStackSnapshot(final Material id, final short durability, final int amount, final Map<String, Object> nbt)
+    {
+        this(id, durability, amount, nbt, null);
+    }
+
+    private ItemStackSnapshot(final Material id, final short durability, final int amount, final Map<String, Object> nbt, final byte[] serialized)
     {
         this.id = id;
         this.durability = durability;
         this.amount = amount;
         this.nbt = nbt;
+        this.serialized = serialized;
+    }
+
+    /**
+     * Creates a copy of the item, whose data is extracted later by {@link #capture()}.
+     */
+    private ItemStackSnapshot(final ItemStack source)
+    {
+        this.id = source.getType();
+        this.amount = source.getAmount();
+        this.source = source;
     }
 
     /**
      * Creates a snapshot of the given item.
      *
+     * Only a copy of the item is made here. Its data (NBT tags and Paper
+     * serialization) is extracted the first time it is needed, typically
+     * when the snapshot is written by the I/O threads, so this is cheap to
+     * call from the main thread.
+     *
      * @param stack The ItemStack to create a snapshot of.
      *
-     * @return The snapshot, or {@code null} if the item was {@code null} or if
-     * an error occurred.
+     * @return The snapshot, or {@code null} if the item was {@code null}.
      */
     public static ItemStackSnapshot snap(final ItemStack stack)
     {
         if (stack == null) return null;
+        return new ItemStackSnapshot(stack.clone());
+    }
+
+    /**
+     * Extracts the data of the copied item, if this was not done yet. On
+     * Paper, the item is serialized by Paper and its NBT data is not
+     * extracted; otherwise (or if Paper fails), the NBT data is extracted.
+     * If the data cannot be extracted, the item is kept without its NBT tags.
+     */
+    private synchronized void capture()
+    {
+        final ItemStack stack = source;
+        if (stack == null) return;
+
+        durability = getDurabilityRemainingForItemStack(stack);
 
-        try
+        if (PAPER_SERIALIZATION && !stack.getType().isAir())
         {
-            return new ItemStackSnapshot(
-                    stack.getType(),
-                    getDurabilityRemainingForItemStack(stack), stack.getAmount(),
-                    NBT.fromItemStack(stack).toHashMap()
-            );
+            try
+            {
+                serialized = stack.serializeAsBytes();
+            }
+            catch (final RuntimeException e)
+            {
+                PluginLogger.warning("Unable to serialize item {0} with Paper, its NBT data will be stored instead", e, stack.getType());
+            }
         }
-        catch (NMSException e)
+
+        if (serialized == null)
         {
-            PluginLogger.error("Unable to extract NBT data from item {0}", e, stack.getType());
-            return null;
+            try
+            {
+                nbt = NBT.fromItemStack(stack).toHashMap();
+            }
+            catch (NMSException e)
+            {
+                PluginLogger.error("Unable to extract NBT data from item {0}", e, stack.getType());
+            }
         }
+
+        source = null;
     }
 
     public static void setDurabilityRemainingForItemStack(ItemStack item, short durabilityRemaining) {
@@ -154,10 +266,125 @@ public class ItemStackSnapshot
      */
     public ItemStack reconstruct()
     {
+        // Not captured yet: the copy is still there, and is faster to clone than anything else.
+        final ItemStack stack = source;
+        if (stack != null) return stack.clone();
+
+        if (serialized != null && PAPER_SERIALIZATION)
+        {
+            try
+            {
+                return ItemStack.deserializeBytes(serialized);
+            }
+            catch (final RuntimeException e)
+            {
+                PluginLogger.error("Unable to deserialize item {0} with Paper; it is restored without its data", e, id);
+            }
+        }
+
         return new ItemStackBuilder(id).withMeta((ItemStack item) -> setDurabilityRemainingForItemStack(item, durability)).amount(amount).nbt(nbt).replaceNBT().craftItem();
     }
 
 
+    /**
+     * Estimates the memory used by this snapshot, including its NBT data.
+     *
+     * @return The approximate size of this snapshot, in bytes.
+     */
+    long getApproximateSize()
+    {
+        // Not captured yet; the actual size is unknown, and computing it is what capture() avoids.
+        if (source != null) return 256;
+
+        return 32 + approximateSizeOf(nbt) + approximateSizeOf(serialized);
+    }
+
+    /**
+     * @return {@code true} if the data of the item was extracted from the
+     * copy made by {@link #snap(ItemStack)}.
+     */
+    boolean isCaptured()
+    {
+        return source == null;
+    }
+
+    private static long approximateSizeOf(final Object value)
+    {
+        if (value == null)
+        {
+            return 0;
+        }
+        else if (value instanceof Map)
+        {
+            long size = 48;
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                size += 32 + approximateSizeOf(entry.getKey()) + approximateSizeOf(entry.getValue());
+
+            return size;
+        }
+        else if (value instanceof Iterable)
+        {
+            long size = 32;
+            for (final Object element : (Iterable<?>) value)
+                size += 8 + approximateSizeOf(element);
+
+            return size;
+        }
+        else if (value instanceof String)
+        {
+            return 40 + 2L * ((String) value).length();
+        }
+        else if (value instanceof byte[])
+        {
+            return 16 + ((byte[]) value).length;
+        }
+        else if (value instanceof int[])
+        {
+            return 16 + 4L * ((int[]) value).length;
+        }
+        else if (value instanceof long[])
+        {
+            return 16 + 8L * ((long[]) value).length;
+        }
+        else
+        {
+            return 16;
+        }
+    }
+
+
+    /**
+     * Two item snapshots are equal if they hold the same item, with the same
+     * data. For snapshots created by {@link #snap(ItemStack)}, this extracts
+     * the item data, if not done yet.
+     */
+    @Override
+    public boolean equals(final Object o)
+    {
+        if (this == o) return true;
+        if (!(o instanceof ItemStackSnapshot)) return false;
+
+        final ItemStackSnapshot other = (ItemStackSnapshot) o;
+
+        capture();
+        other.capture();
+
+        return id == other.id && durability == other.durability && amount == other.amount
+                && Objects.equals(nbt, other.nbt) && Arrays.equals(serialized, other.serialized);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        if (hash == 0)
+        {
+            capture();
+            hash = Objects.hash(id, durability, amount, nbt, Arrays.hashCode(serialized));
+        }
+
+        return hash;
+    }
+
     /**
      * @return A JSON representation of this snapshot, usable as export.
      */
@@ -172,22 +399,127 @@ public class ItemStackSnapshot
      */
     public JsonElement toJSON()
     {
-        final JsonObject dump = new JsonObject();
+        return new JsonParser().parse(toJSONString());
+    }
+
+    /**
+     * Writes a JSON representation of this snapshot directly into the given
+     * writer, without building an intermediate JSON tree.
+     *
+     * <p>Items serialized by Paper are written under {@code Paper}, encoded in
+     * base64. For the others, the NBT data is written under {@code TypedNBT},
+     * keeping the exact type of each value (see {@link
+     * #writeTyped(JsonWriter, Object)}).</p>
+     *
+     * @param writer The writer.
+     *
+     * @throws IOException if the representation cannot be written.
+     */
+    void toJSON(final JsonWriter writer) throws IOException
+    {
+        capture();
+
+        writer.beginObject();
+
+        writer.name("id").value(id.toString());
+        writer.name("Damage").value((Number) durability);
+        writer.name("Count").value((Number) amount);
+
+        if (serialized != null)
+        {
+            writer.name("Paper").value(Base64.getEncoder().encodeToString(serialized));
+        }
+        else
+        {
+            writer.name("TypedNBT");
+            writeTyped(writer, nbt);
+        }
 
-        dump.addProperty("id", id.toString());
-        dump.addProperty("Damage", durability);
-        dump.addProperty("Count", amount);
+        writer.endObject();
+    }
 
-        try
+    /**
+     * Writes a NBT structure as JSON, keeping the exact type of each value.
+     *
+     * <p>Compounds and lists are written as JSON objects and arrays. Other
+     * values are written as strings, prefixed by a character telling their
+     * type (see {@link #typePrefixOf(byte)}): {@code "i5"} is an int tag
+     * holding 5, {@code "tfoo"} the string tag {@code foo}. Arrays are written
+     * as JSON arrays starting with a {@code "B;"}, {@code "I;"} or {@code "L;"}
+     * marker, followed by the raw numbers.</p>
+     */
+    private static void writeTyped(final JsonWriter writer, final Object value) throws IOException
+    {
+        if (value == null)
         {
-            dump.add("NBT", MultipleInventories.GSON.toJsonTree(nbt));
+            writer.nullValue();
+            return;
         }
-        catch (final JsonSyntaxException e)
+
+        final byte type = binaryTypeOf(value);
+
+        switch (type)
         {
-            PluginLogger.error("Invalid NBT JSON string: {0}", e, nbt);
+            case TAG_COMPOUND:
+                writer.beginObject();
+
+                for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                {
+                    if (entry.getValue() == null) continue;
+
+                    writer.name(entry.getKey().toString());
+                    writeTyped(writer, entry.getValue());
+                }
+
+                writer.endObject();
+                break;
+
+            case TAG_LIST:
+                writer.beginArray();
+                for (final Object element : (List<?>) value) if (element != null) writeTyped(writer, element);
+                writer.endArray();
+                break;
+
+            case TAG_BYTE_ARRAY:
+                writer.beginArray().value("B;");
+                for (final byte b : (byte[]) value) writer.value(b);
+                writer.endArray();
+                break;
+
+            case TAG_INT_ARRAY:
+                writer.beginArray().value("I;");
+                for (final int i : (int[]) value) writer.value(i);
+                writer.endArray();
+                break;
+
+            case TAG_LONG_ARRAY:
+                writer.beginArray().value("L;");
+                for (final long l : (long[]) value) writer.value(l);
+                writer.endArray();
+                break;
+
+            case TAG_BYTE:
+                writer.value("b" + (value instanceof Boolean ? ((Boolean) value ? 1 : 0) : value));
+                break;
+
+            default:
+                writer.value(typePrefixOf(type) + value.toString());
         }
+    }
 
-        return dump;
+    private static char typePrefixOf(final byte type)
+    {
+        switch (type)
+        {
+            case TAG_BYTE: return 'b';
+            case TAG_SHORT: return 's';
+            case TAG_INT: return 'i';
+            case TAG_LONG: return 'l';
+            case TAG_FLOAT: return 'f';
+            case TAG_DOUBLE: return 'd';
+            case TAG_STRING: return 't';
+            default: throw new IllegalArgumentException("No type prefix for NBT type " + type);
+        }
     }
 
     /**
@@ -195,7 +527,18 @@ public class ItemStackSnapshot
      */
     public String toJSONString()
     {
-        return MultipleInventories.GSON.toJson(toJSON());
+        final StringWriter json = new StringWriter();
+
+        try (final JsonWriter writer = PlayerSnapshot.newJsonWriter(json))
+        {
+            toJSON(writer);
+        }
+        catch (final IOException e)
+        {
+            throw new JsonIOException(e);
+        }
+
+        return json.toString();
     }
 
     /**
@@ -207,7 +550,15 @@ public class ItemStackSnapshot
      */
     public static ItemStackSnapshot fromJSONString(final String json)
     {
-        return fromJSON((new JsonParser().parse(json)).getAsJsonObject());
+        try (final JsonReader reader = new JsonReader(new StringReader(json)))
+        {
+            return fromJSON(reader);
+        }
+        catch (final IOException | IllegalStateException | NumberFormatException e)
+        {
+            PluginLogger.error("Unable to load malformed item stack snapshot: {0}", e, json);
+            return null;
+        }
     }
 
     /**
@@ -217,25 +568,510 @@ public class ItemStackSnapshot
      *
      * @return A snapshot with these data inside.
      */
-    @SuppressWarnings ("unchecked")
     public static ItemStackSnapshot fromJSON(final JsonObject json)
     {
-        try
+        return fromJSONString(json.toString());
+    }
+
+    /**
+     * Loads a snapshot from a JSON export, reading it directly from the given
+     * stream, without building an intermediate JSON tree.
+     *
+     * @param reader The reader, positioned on the item snapshot object.
+     *
+     * @return A snapshot with these data inside, or {@code null} if the item
+     * material is missing or unknown.
+     * @throws IOException if the JSON is malformed.
+     */
+    static ItemStackSnapshot fromJSON(final JsonReader reader) throws IOException
+    {
+        String materialName = null;
+        short durability = 0;
+        int amount = 1;
+        Map<String, Object> nbt = null;
+        boolean typed = false;
+        byte[] serialized = null;
+
+        reader.beginObject();
+
+        while (reader.hasNext())
+        {
+            final String name = reader.nextName();
+
+            if (reader.peek() == JsonToken.NULL)
+            {
+                reader.nextNull();
+                continue;
+            }
+
+            switch (name)
+            {
+                case "id":
+                    materialName = reader.nextString();
+                    break;
+
+                case "Damage":
+                    durability = Short.parseShort(reader.nextString());
+                    break;
+
+                case "Count":
+                    amount = reader.nextInt();
+                    break;
+
+                case "TypedNBT":
+                    nbt = readTypedCompound(reader);
+                    typed = true;
+                    break;
+
+                case "NBT":
+                    // Exports written before NBT types were recorded only have this one.
+                    if (typed) reader.skipValue();
+                    else nbt = readNativeCompound(reader);
+                    break;
+
+                case "Paper":
+                    serialized = Base64.getDecoder().decode(reader.nextString());
+                    break;
+
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+
+        final Material material = materialName != null ? Material.getMaterial(materialName) : null;
+        if (material == null)
+        {
+            PluginLogger.error("Skipping item with unknown material {0} from JSON snapshot", materialName);
+            return null;
+        }
+
+        checkRestorable(material, serialized);
+
+        return ItemStackSnapshotsPool.intern(new ItemStackSnapshot(material, durability, amount, nbt, serialized));
+    }
+
+    /**
+     * Checks that a loaded item can be restored on this server. Items stored
+     * using Paper's serialization can only be restored on Paper.
+     *
+     * @throws IOException if the item was stored using Paper's serialization,
+     * and the server does not provide it.
+     */
+    private static void checkRestorable(final Material material, final byte[] serialized) throws IOException
+    {
+        if (serialized != null && !PAPER_SERIALIZATION)
+            throw new IOException("Item " + material + " was stored using Paper's serialization, which this server does not provide. Load this snapshot on a Paper server.");
+    }
+
+    /**
+     * Writes a binary representation of this snapshot: either the bytes
+     * serialized by Paper, or the NBT data with its exact types.
+     *
+     * @param out The output to write into.
+     *
+     * @throws IOException if the snapshot cannot be written.
+     */
+    void toBinary(final DataOutput out) throws IOException
+    {
+        capture();
+
+        out.writeUTF(id.name());
+        out.writeShort(durability);
+        VarInts.write(out, amount);
+
+        if (serialized != null)
+        {
+            // Paper-serialized items are stored as a byte array.
+            out.writeByte(TAG_BYTE_ARRAY);
+            VarInts.write(out, serialized.length);
+            out.write(serialized);
+        }
+        else if (nbt != null)
+        {
+            out.writeByte(TAG_COMPOUND);
+            writeCompound(out, nbt);
+        }
+        else
+        {
+            out.writeByte(TAG_END);
+        }
+    }
+
+    /**
+     * Loads a snapshot from its binary representation.
+     *
+     * @param in The input to read from.
+     *
+     * @return The snapshot, or {@code null} if its material no longer exists.
+     * @throws IOException if the data is malformed, or if the item cannot be
+     * restored on this server.
+     */
+    static ItemStackSnapshot fromBinary(final DataInput in) throws IOException
+    {
+        final String materialName = in.readUTF();
+        final short durability = in.readShort();
+        final int amount = VarInts.read(in);
+
+        Map<String, Object> nbt = null;
+        byte[] serialized = null;
+
+        final byte tag = in.readByte();
+
+        if (tag == TAG_BYTE_ARRAY)
+        {
+            serialized = new byte[VarInts.read(in)];
+            in.readFully(serialized);
+        }
+        else if (tag == TAG_COMPOUND)
+        {
+            nbt = readCompound(in);
+        }
+        else if (tag != TAG_END)
         {
-            return new ItemStackSnapshot(
-                    Material.getMaterial(json.getAsJsonPrimitive("id").getAsString()),
-                    json.getAsJsonPrimitive("Damage").getAsShort(),
-                    json.getAsJsonPrimitive("Count").getAsInt(),
-                    jsonToNative(json.getAsJsonObject("NBT"))
-            );
+            throw new IOException("Unknown item data tag " + tag + " for item " + materialName);
         }
-        catch (IllegalStateException e)
+
+        final Material material = Material.getMaterial(materialName);
+        if (material == null)
         {
-            PluginLogger.error("Unable to load malformed item stack snapshot: {0}", e, json.toString());
+            PluginLogger.error("Skipping item with unknown material {0} from binary snapshot", materialName);
             return null;
         }
+
+        checkRestorable(material, serialized);
+
+        return ItemStackSnapshotsPool.intern(new ItemStackSnapshot(material, durability, amount, nbt, serialized));
+    }
+
+    private static byte binaryTypeOf(final Object value) throws IOException
+    {
+        if (value instanceof Byte || value instanceof Boolean) return TAG_BYTE;
+        else if (value instanceof Short) return TAG_SHORT;
+        else if (value instanceof Integer) return TAG_INT;
+        else if (value instanceof Long) return TAG_LONG;
+        else if (value instanceof Float) return TAG_FLOAT;
+        else if (value instanceof Double || value instanceof BigDecimal) return TAG_DOUBLE;
+        else if (value instanceof byte[]) return TAG_BYTE_ARRAY;
+        else if (value instanceof String) return TAG_STRING;
+        else if (value instanceof List) return TAG_LIST;
+        else if (value instanceof Map) return TAG_COMPOUND;
+        else if (value instanceof int[]) return TAG_INT_ARRAY;
+        else if (value instanceof long[]) return TAG_LONG_ARRAY;
+
+        throw new IOException("Unsupported NBT value type " + value.getClass().getName());
+    }
+
+    private static void writeCompound(final DataOutput out, final Map<?, ?> compound) throws IOException
+    {
+        for (final Map.Entry<?, ?> entry : compound.entrySet())
+        {
+            if (entry.getValue() == null) continue;
+
+            final byte type = binaryTypeOf(entry.getValue());
+
+            out.writeByte(type);
+            out.writeUTF(entry.getKey().toString());
+            writeValue(out, type, entry.getValue());
+        }
+
+        out.writeByte(TAG_END);
+    }
+
+    private static void writeValue(final DataOutput out, final byte type, final Object value) throws IOException
+    {
+        switch (type)
+        {
+            case TAG_BYTE:
+                out.writeByte(value instanceof Boolean ? ((Boolean) value ? 1 : 0) : (Byte) value);
+                break;
+
+            case TAG_SHORT:
+                out.writeShort((Short) value);
+                break;
+
+            case TAG_INT:
+                out.writeInt((Integer) value);
+                break;
+
+            case TAG_LONG:
+                out.writeLong((Long) value);
+                break;
+
+            case TAG_FLOAT:
+                out.writeFloat((Float) value);
+                break;
+
+            case TAG_DOUBLE:
+                out.writeDouble(((Number) value).doubleValue());
+                break;
+
+            case TAG_BYTE_ARRAY:
+                final byte[] bytes = (byte[]) value;
+                VarInts.write(out, bytes.length);
+                out.write(bytes);
+                break;
+
+            case TAG_STRING:
+                out.writeUTF((String) value);
+                break;
+
+            case TAG_LIST:
+                writeList(out, (List<?>) value);
+                break;
+
+            case TAG_COMPOUND:
+                writeCompound(out, (Map<?, ?>) value);
+                break;
+
+            case TAG_INT_ARRAY:
+                final int[] ints = (int[]) value;
+                VarInts.write(out, ints.length);
+                for (final int i : ints) out.writeInt(i);
+                break;
+
+            case TAG_LONG_ARRAY:
+                final long[] longs = (long[]) value;
+                VarInts.write(out, longs.length);
+                for (final long l : longs) out.writeLong(l);
+                break;
+
+            default:
+                throw new IOException("Unsupported NBT type " + type);
+        }
+    }
+
+    private static void writeList(final DataOutput out, final List<?> list) throws IOException
+    {
+        final List<Object> elements = new ArrayList<>(list.size());
+        byte elementsType = TAG_END;
+
+        for (final Object element : list)
+        {
+            if (element == null) continue;
+
+            final byte type = binaryTypeOf(element);
+
+            if (elementsType == TAG_END) elementsType = type;
+            else if (elementsType != type) elementsType = TAG_MIXED;
+
+            elements.add(element);
+        }
+
+        out.writeByte(elementsType);
+        VarInts.write(out, elements.size());
+
+        for (final Object element : elements)
+        {
+            if (elementsType == TAG_MIXED)
+            {
+                final byte type = binaryTypeOf(element);
+                out.writeByte(type);
+                writeValue(out, type, element);
+            }
+            else
+            {
+                writeValue(out, elementsType, element);
+            }
+        }
+    }
+
+    private static Map<String, Object> readCompound(final DataInput in) throws IOException
+    {
+        final Map<String, Object> compound = new HashMap<>();
+
+        byte type;
+        while ((type = in.readByte()) != TAG_END)
+        {
+            final String key = NBTStrings.intern(in.readUTF());
+            compound.put(key, readValue(in, type));
+        }
+
+        return NBTStrings.compact(compound);
     }
 
+    private static Object readValue(final DataInput in, final byte type) throws IOException
+    {
+        switch (type)
+        {
+            case TAG_BYTE:
+                return in.readByte();
+
+            case TAG_SHORT:
+                return in.readShort();
+
+            case TAG_INT:
+                return in.readInt();
+
+            case TAG_LONG:
+                return in.readLong();
+
+            case TAG_FLOAT:
+                return in.readFloat();
+
+            case TAG_DOUBLE:
+                return in.readDouble();
+
+            case TAG_BYTE_ARRAY:
+                final byte[] bytes = new byte[VarInts.read(in)];
+                in.readFully(bytes);
+                return bytes;
+
+            case TAG_STRING:
+                return NBTStrings.intern(in.readUTF());
+
+            case TAG_LIST:
+                final byte elementsType = in.readByte();
+                final int size = VarInts.read(in);
+                final List<Object> list = new ArrayList<>(size);
+
+                for (int i = 0; i < size; i++)
+                    list.add(readValue(in, elementsType == TAG_MIXED ? in.readByte() : elementsType));
+
+                return list;
+
+            case TAG_COMPOUND:
+                return readCompound(in);
+
+            case TAG_INT_ARRAY:
+                final int[] ints = new int[VarInts.read(in)];
+                for (int i = 0; i < ints.length; i++) ints[i] = in.readInt();
+                return ints;
+
+            case TAG_LONG_ARRAY:
+                final long[] longs = new long[VarInts.read(in)];
+                for (int i = 0; i < longs.length; i++) longs[i] = in.readLong();
+                return longs;
+
+            default:
+                throw new IOException("Unsupported NBT type " + type);
+        }
+    }
+
+
+    /**
+     * Reads a NBT compound written by {@link #writeTyped(JsonWriter, Object)}.
+     *
+     * @param reader The reader, positioned on the JSON object to be decoded.
+     * @return The compound, with the exact types it was written with.
+     * @throws IOException if the JSON is malformed.
+     */
+    private static Map<String, Object> readTypedCompound(final JsonReader reader) throws IOException
+    {
+        final Map<String, Object> compound = new HashMap<>();
+
+        reader.beginObject();
+
+        while (reader.hasNext())
+        {
+            final String key = NBTStrings.intern(reader.nextName());
+            final Object value = readTyped(reader);
+
+            if (value != null)
+            {
+                compound.put(key, value);
+            }
+        }
+
+        reader.endObject();
+
+        return NBTStrings.compact(compound);
+    }
+
+    private static Object readTyped(final JsonReader reader) throws IOException
+    {
+        switch (reader.peek())
+        {
+            case BEGIN_OBJECT:
+                return readTypedCompound(reader);
+
+            case BEGIN_ARRAY:
+                return readTypedArray(reader);
+
+            case STRING:
+                return parseTyped(reader.nextString());
+
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    private static Object parseTyped(final String value) throws IOException
+    {
+        if (value.isEmpty()) throw new IOException("Untyped NBT value");
+
+        final String raw = value.substring(1);
+
+        switch (value.charAt(0))
+        {
+            case 'b': return Byte.parseByte(raw);
+            case 's': return Short.parseShort(raw);
+            case 'i': return Integer.parseInt(raw);
+            case 'l': return Long.parseLong(raw);
+            case 'f': return Float.parseFloat(raw);
+            case 'd': return Double.parseDouble(raw);
+            case 't': return NBTStrings.intern(raw);
+            default: throw new IOException("Unknown NBT type prefix in " + value);
+        }
+    }
+
+    private static Object readTypedArray(final JsonReader reader) throws IOException
+    {
+        reader.beginArray();
+
+        final List<Object> list = new ArrayList<>();
+        byte arrayType = TAG_LIST;
+
+        if (reader.hasNext() && reader.peek() == JsonToken.STRING)
+        {
+            final String first = reader.nextString();
+
+            switch (first)
+            {
+                case "B;": arrayType = TAG_BYTE_ARRAY; break;
+                case "I;": arrayType = TAG_INT_ARRAY; break;
+                case "L;": arrayType = TAG_LONG_ARRAY; break;
+                default:
+                    // A plain list, whose first element is already read.
+                    list.add(parseTyped(first));
+            }
+        }
+
+        switch (arrayType)
+        {
+            case TAG_BYTE_ARRAY:
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                while (reader.hasNext()) bytes.write(reader.nextInt());
+                reader.endArray();
+                return bytes.toByteArray();
+
+            case TAG_INT_ARRAY:
+                final List<Integer> ints = new ArrayList<>();
+                while (reader.hasNext()) ints.add(reader.nextInt());
+                reader.endArray();
+                return ints.stream().mapToInt(Integer::intValue).toArray();
+
+            case TAG_LONG_ARRAY:
+                final List<Long> longs = new ArrayList<>();
+                while (reader.hasNext()) longs.add(reader.nextLong());
+                reader.endArray();
+                return longs.stream().mapToLong(Long::longValue).toArray();
+
+            default:
+                while (reader.hasNext())
+                {
+                    final Object element = readTyped(reader);
+                    if (element != null) list.add(element);
+                }
+
+                reader.endArray();
+                return list;
+        }
+    }
+
+
     /**
      * From a JSON object, constructs a {@link Map Map&lt;String, Object&gt;} representing
      * the same structure (recursively) using native types.
@@ -256,28 +1092,34 @@ public class ItemStackSnapshot
      * <p>We had to re-implement this to ensure the generated structure to have the
      * right data type (instead of all numbers being doubles) and precision.</p>
      *
-     * @param json The json object to be decoded.
+     * @param reader The reader, positioned on the JSON object to be decoded.
      * @return {@link Map Map&lt;String, Object&gt;} representing the same structure
      * (recursively) using native types.
+     * @throws IOException if the JSON is malformed.
      *
-     * @see #jsonToNative(JsonElement) Converts any json element (including objects)
+     * @see #readNative(JsonReader) Converts any json element (including objects)
      * to a native data structure.
      */
-    private static Map<String, Object> jsonToNative(final JsonObject json)
+    private static Map<String, Object> readNativeCompound(final JsonReader reader) throws IOException
     {
         final Map<String, Object> nativeMap = new HashMap<>();
 
-        json.entrySet().forEach(entry ->
+        reader.beginObject();
+
+        while (reader.hasNext())
         {
-            final Object nativeValue = jsonToNative(entry.getValue());
+            final String key = NBTStrings.intern(reader.nextName());
+            final Object nativeValue = readNative(reader);
 
             if (nativeValue != null)
             {
-                nativeMap.put(entry.getKey(), nativeValue);
+                nativeMap.put(key, nativeValue);
             }
-        });
+        }
+
+        reader.endObject();
 
-        return nativeMap;
+        return NBTStrings.compact(nativeMap);
     }
 
     /**
@@ -287,92 +1129,92 @@ public class ItemStackSnapshot
      * <p>We had to re-implement this to ensure the generated structure to have the
      * right data type (instead of all numbers being doubles) and precision.</p>
      *
-     * @param element The json element to be decoded.
+     * @param reader The reader, positioned on the JSON element to be decoded.
      * @return A native data structure (either a {@link Map Map&lt;String, Object&gt;},
      * a {@link List List&lt;Object&gt;}, or a native type) representing the same
      * structure (recursively).
+     * @throws IOException if the JSON is malformed.
      *
-     * @see #jsonToNative(JsonObject) Converts a json object to an explicit {@link Map}.
+     * @see #readNativeCompound(JsonReader) Converts a json object to an explicit {@link Map}.
      * The JavaDoc also contains explainations on why this is needed.
      */
-    private static Object jsonToNative(final JsonElement element)
+    private static Object readNative(final JsonReader reader) throws IOException
     {
-        if (element.isJsonObject())
+        switch (reader.peek())
         {
-            return jsonToNative(element.getAsJsonObject());
-        }
-        else if (element.isJsonArray())
-        {
-            final List<Object> list = new ArrayList<>();
+            case BEGIN_OBJECT:
+                return readNativeCompound(reader);
 
-            element.getAsJsonArray().forEach(listElement ->
-            {
-                final Object nativeValue = jsonToNative(listElement);
+            case BEGIN_ARRAY:
+                final List<Object> list = new ArrayList<>();
 
-                if (nativeValue != null)
+                reader.beginArray();
+
+                while (reader.hasNext())
                 {
-                    list.add(nativeValue);
+                    final Object nativeValue = readNative(reader);
+
+                    if (nativeValue != null)
+                    {
+                        list.add(nativeValue);
+                    }
                 }
-            });
 
-            return list;
+                reader.endArray();
+
+                return list;
+
+            case BOOLEAN:
+                return reader.nextBoolean();
+
+            case STRING:
+                return NBTStrings.intern(reader.nextString());
+
+            case NUMBER:
+                return numberToNative(reader.nextString());
+
+            default:
+                // Else the element is null.
+                reader.skipValue();
+                return null;
         }
-        else if (element.isJsonPrimitive())
+    }
+
+    /**
+     * Finds the narrowest type able to hold the given number without losing
+     * precision. Used for exports written before NBT types were recorded,
+     * where the type has to be guessed.
+     *
+     * @param number The number, as read from the JSON export.
+     * @return The number, using the narrowest fitting native type.
+     */
+    private static Object numberToNative(final String number)
+    {
+        final boolean integral = number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0;
+
+        // Up to 18 digits always fit into a long.
+        if (integral && number.length() <= 18)
         {
-            final JsonPrimitive primitive = element.getAsJsonPrimitive();
+            return narrow(Long.parseLong(number));
+        }
 
-            if (primitive.isBoolean())
-            {
-                return primitive.getAsBoolean();
-            }
-            else if (primitive.isString())
-            {
-                return primitive.getAsString();
-            }
-            else /* it's a number… we yet have to find the type. */
-            {
-                final BigDecimal number = primitive.getAsBigDecimal();
+        final BigDecimal decimal = new BigDecimal(number);
 
-                try
-                {
-                    return number.byteValueExact();
-                }
-                catch (final ArithmeticException e1)
-                {
-                    try
-                    {
-                        return number.shortValueExact();
-                    }
-                    catch (final ArithmeticException e2)
-                    {
-                        try
-                        {
-                            return number.intValueExact();
-                        }
-                        catch (final ArithmeticException e3)
-                        {
-                            try
-                            {
-                                return number.longValueExact();
-                            }
-                            catch (final ArithmeticException e4)
-                            {
-                                try
-                                {
-                                    return number.doubleValue();
-                                }
-                                catch (final ArithmeticException | NumberFormatException e5)
-                                {
-                                    return number;
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+        if (decimal.signum() == 0) return (byte) 0;
+        if (decimal.stripTrailingZeros().scale() <= 0)
+        {
+            final BigInteger integer = decimal.toBigIntegerExact();
+            if (integer.bitLength() < Long.SIZE) return narrow(integer.longValue());
         }
 
-        // Else the element is null.
-        return null;
+        return decimal.doubleValue();
+    }
+
+    private static Object narrow(final long number)
+    {
+        if (number >= Byte.MIN_VALUE && number <= Byte.MAX_VALUE) return (byte) number;
+        else if (number >= Short.MIN_VALUE && number <= Short.MAX_VALUE) return (short) number;
+        else if (number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE) return (int) number;
+        else return number;
     }
 }
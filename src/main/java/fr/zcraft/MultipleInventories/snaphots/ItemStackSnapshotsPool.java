@@ -0,0 +1,153 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.snaphots;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A pool of shared item snapshots.
+ *
+ * Most stored items are plain stacks (64 stone, 16 ender pearls…), equal
+ * from one snapshot to another. Item snapshots being immutable once loaded,
+ * equal ones are replaced by a single shared instance, across all the loaded
+ * snapshots.
+ *
+ * Only small items are pooled, as comparing items with large NBT data would
+ * cost more than it saves. The pool is bounded, the least recently used
+ * items being evicted first.
+ *
+ * This class is thread-safe.
+ */
+public final class ItemStackSnapshotsPool
+{
+    /**
+     * The maximal amount of items in the pool.
+     */
+    private static final int MAX_SIZE = 8192;
+
+    /**
+     * Items with an approximate size above this are not pooled.
+     */
+    private static final long MAX_POOLED_ITEM_SIZE = 512;
+
+    private static final Map<ItemStackSnapshot, ItemStackSnapshot> pool = new LinkedHashMap<ItemStackSnapshot, ItemStackSnapshot>(1024, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<ItemStackSnapshot, ItemStackSnapshot> eldest)
+        {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private static long hits = 0;
+    private static long misses = 0;
+
+
+    private ItemStackSnapshotsPool() {}
+
+    /**
+     * Returns the shared instance equal to the given item snapshot, adding it
+     * to the pool if there is none.
+     *
+     * @param item An item snapshot, which must not be modified afterwards.
+     *
+     * @return The shared instance, or the item itself if it is not pooled.
+     */
+    static ItemStackSnapshot intern(final ItemStackSnapshot item)
+    {
+        if (item == null || item.getApproximateSize() > MAX_POOLED_ITEM_SIZE) return item;
+
+        synchronized (pool)
+        {
+            final ItemStackSnapshot shared = pool.get(item);
+
+            if (shared != null)
+            {
+                hits++;
+                return shared;
+            }
+
+            misses++;
+            pool.put(item, item);
+
+            return item;
+        }
+    }
+
+    /**
+     * @return The amount of items in the pool.
+     */
+    public static int size()
+    {
+        synchronized (pool)
+        {
+            return pool.size();
+        }
+    }
+
+    /**
+     * @return The amount of items replaced by a shared instance.
+     */
+    public static long getHits()
+    {
+        synchronized (pool)
+        {
+            return hits;
+        }
+    }
+
+    /**
+     * @return The amount of items added to the pool.
+     */
+    public static long getMisses()
+    {
+        synchronized (pool)
+        {
+            return misses;
+        }
+    }
+
+    /**
+     * @return The ratio of items replaced by a shared instance, between 0
+     * and 1.
+     */
+    public static double getHitRate()
+    {
+        synchronized (pool)
+        {
+            return hits + misses > 0 ? (double) hits / (hits + misses) : 0;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+package fr.zcraft.MultipleInventories.snaphots;
+
+import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
+
+import java.io.IOException;
+
+
+/**
+ * A stored snapshot, decoded the first time it is needed.
+ *
+ * <p>If the stored snapshot cannot be decoded, its data is kept as is, and
+ * the snapshot is marked as corrupted: it is never decoded again, and {@link
+ * #get()} returns {@code null}.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public final class LazySnapshot
+{
+    private volatile PlayerSnapshot snapshot;
+    private volatile boolean corrupted = false;
+
+    /**
+     * The stored snapshot, until it is successfully decoded. Kept if it
+     * cannot be decoded.
+     */
+    private volatile byte[] stored;
+
+
+    private LazySnapshot(final PlayerSnapshot snapshot, final byte[] stored)
+    {
+        this.snapshot = snapshot;
+        this.stored = stored;
+    }
+
+    /**
+     * @param snapshot A snapshot.
+     *
+     * @return A lazy snapshot, already decoded, wrapping this snapshot.
+     */
+    public static LazySnapshot of(final PlayerSnapshot snapshot)
+    {
+        return new LazySnapshot(snapshot, null);
+    }
+
+    /**
+     * @param stored A stored snapshot, possibly compressed.
+     *
+     * @return A lazy snapshot, which will decode the stored one when needed.
+     */
+    static LazySnapshot ofStored(final byte[] stored)
+    {
+        return new LazySnapshot(null, stored);
+    }
+
+    /**
+     * @return {@code true} if the snapshot is already decoded (or known to be
+     * corrupted), i.e. if {@link #get()} will not block.
+     */
+    public boolean isDecoded()
+    {
+        return snapshot != null || corrupted;
+    }
+
+    /**
+     * @return {@code true} if the stored snapshot could not be decoded.
+     */
+    public boolean isCorrupted()
+    {
+        return corrupted;
+    }
+
+    /**
+     * @return The stored data of this snapshot if it could not be decoded, or
+     * {@code null} if it is not corrupted.
+     */
+    byte[] getCorruptedData()
+    {
+        return corrupted ? stored : null;
+    }
+
+    /**
+     * Decodes the stored snapshot, if not already done.
+     *
+     * @return The snapshot, or {@code null} if it is corrupted.
+     * @throws IOException if the stored snapshot cannot be decoded right now.
+     * The snapshot is then marked as corrupted.
+     */
+    PlayerSnapshot decode() throws IOException
+    {
+        final PlayerSnapshot decoded = snapshot;
+        if (decoded != null) return decoded;
+
+        synchronized (this)
+        {
+            if (snapshot == null && !corrupted)
+            {
+                try
+                {
+                    final byte[] payload = SnapshotCompression.decompress(stored);
+                    snapshot = SnapshotFormat.detect(payload).decode(payload);
+                    stored = null;
+                }
+                catch (final IOException | RuntimeException e)
+                {
+                    corrupted = true;
+                    throw e;
+                }
+            }
+
+            return snapshot;
+        }
+    }
+
+    /**
+     * Returns the snapshot, decoding it if not already done.
+     *
+     * @return The snapshot, or {@code null} if it is corrupted.
+     */
+    public PlayerSnapshot get()
+    {
+        try
+        {
+            return decode();
+        }
+        catch (final IOException | RuntimeException e)
+        {
+            PluginLogger.error("Unable to decode a stored snapshot; its data is left untouched in the storage until overwritten, and a copy of it will then be kept.", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return The approximate size of this snapshot in memory, in bytes: the
+     * decoded snapshot and the stored data, whichever are retained.
+     */
+    public long getApproximateSize()
+    {
+        final PlayerSnapshot decoded = snapshot;
+        final byte[] encoded = stored;
+
+        return (decoded != null ? decoded.getApproximateSize() : 0) + (encoded != null ? encoded.length : 0);
+    }
+
+    /**
+     * Releases the resources that are only useful to apply this snapshot,
+     * e.g. when it is replaced by a newer one. Must be called from the main
+     * thread.
+     */
+    public void release()
+    {
+        final PlayerSnapshot decoded = snapshot;
+        if (decoded != null) decoded.invalidateMaterialized();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.snaphots;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Deduplicates the strings and maps created while decoding NBT data.
+ *
+ * Decoded items all share the same few keys ("display", "Enchantments", "id",
+ * "lvl"…) and string values (enchantments or attributes identifiers). Without
+ * this, each loaded snapshot would retain its own copy of each of them.
+ *
+ * The interner is bounded: once full, new strings are no longer added but
+ * returned as is. The most common strings being seen first, this costs very
+ * few hits.
+ *
+ * This class is thread-safe.
+ */
+public final class NBTStrings
+{
+    /**
+     * The maximal amount of interned strings.
+     */
+    private static final int MAX_SIZE = 16384;
+
+    /**
+     * Strings longer than this are never interned, as they are unlikely to
+     * be shared (custom names, lore lines, books pages…).
+     */
+    private static final int MAX_INTERNED_LENGTH = 64;
+
+    /**
+     * Compounds with more entries than this are kept as hash maps.
+     */
+    private static final int MAX_COMPACT_SIZE = 8;
+
+    private static final Map<String, String> strings = new ConcurrentHashMap<>(1024);
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+
+    private NBTStrings() {}
+
+    /**
+     * Returns the shared instance equal to the given string, adding it if
+     * there is none and the interner is not full.
+     *
+     * @param string A decoded NBT key or string value. May be {@code null}.
+     *
+     * @return The shared instance, or the string itself if it is not interned.
+     */
+    static String intern(final String string)
+    {
+        if (string == null || string.length() > MAX_INTERNED_LENGTH) return string;
+
+        final String shared = strings.get(string);
+        if (shared != null)
+        {
+            hits.incrementAndGet();
+            return shared;
+        }
+
+        misses.incrementAndGet();
+
+        if (strings.size() >= MAX_SIZE) return string;
+
+        final String previous = strings.putIfAbsent(string, string);
+        return previous != null ? previous : string;
+    }
+
+    /**
+     * Returns a compact, immutable copy of a decoded compound. Small
+     * compounds, which are the vast majority of NBT compounds, are much
+     * lighter this way than in a {@link java.util.HashMap}.
+     *
+     * @param compound A decoded compound, without {@code null} values.
+     *
+     * @return An immutable compound with the same entries.
+     */
+    static Map<String, Object> compact(final Map<String, Object> compound)
+    {
+        switch (compound.size())
+        {
+            case 0:
+                return Collections.emptyMap();
+
+            case 1:
+                final Map.Entry<String, Object> entry = compound.entrySet().iterator().next();
+                return Collections.singletonMap(entry.getKey(), entry.getValue());
+
+            default:
+                return compound.size() <= MAX_COMPACT_SIZE ? ImmutableMap.copyOf(compound) : Collections.unmodifiableMap(compound);
+        }
+    }
+
+    /**
+     * @return The amount of interned strings.
+     */
+    public static int size()
+    {
+        return strings.size();
+    }
+
+    /**
+     * @return The amount of decoded strings replaced by a shared instance.
+     */
+    public static long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return The amount of decoded strings not found in the interner.
+     */
+    public static long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return The ratio of decoded strings replaced by a shared instance,
+     * between 0 and 1.
+     */
+    public static double getHitRate()
+    {
+        final long hitsCount = hits.get();
+        final long total = hitsCount + misses.get();
+
+        return total > 0 ? (double) hitsCount / total : 0;
+    }
+}
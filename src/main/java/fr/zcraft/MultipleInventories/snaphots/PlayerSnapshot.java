@@ -31,13 +31,14 @@
  */
 package fr.zcraft.MultipleInventories.snaphots;
 
-import com.google.common.collect.Streams;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonNull;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import fr.zcraft.MultipleInventories.MultipleInventories;
 import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
 import fr.zcraft.MultipleInventories.quartzlib.tools.reflection.Reflection;
@@ -49,14 +50,23 @@ import org.bukkit.inventory.ItemStack;
 import org.bukkit.potion.PotionEffect;
 import org.bukkit.potion.PotionEffectType;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 
 /**
@@ -66,6 +76,21 @@ import java.util.stream.Collectors;
  */
 public class PlayerSnapshot
 {
+    /**
+     * Header of binary snapshots: "MIB" followed by the binary format version.
+     */
+    private static final byte[] BINARY_HEADER = {'M', 'I', 'B', 1};
+
+    /**
+     * The slots of the player inventory holding the armor, from the boots to
+     * the helmet.
+     */
+    private static final int ARMOR_FIRST_SLOT = 36;
+    private static final int ARMOR_SLOTS = 4;
+
+    private static final int MAX_RETAINED_JSON_BUFFER = 1 << 20;
+    private static final ThreadLocal<ByteArrayOutputStream> JSON_BUFFERS = ThreadLocal.withInitial(() -> new ByteArrayOutputStream(8192));
+
     private final int level;
     private final float exp;
     private final int expTotal;
@@ -77,13 +102,26 @@ public class PlayerSnapshot
     private final double health;
     private final double maxHealth;
 
-    private final Map<Integer, ItemStackSnapshot> inventory;
-    private final Map<Integer, ItemStackSnapshot> enderChest;
-
-    private final ItemStackSnapshot[] armor;
+    /**
+     * The player's inventory, including the armor and off-hand slots.
+     */
+    private final ItemSlots inventory;
+    private final ItemSlots enderChest;
 
     private final Collection<PotionEffect> effects;
 
+    /**
+     * Lazily computed, see {@link #getApproximateSize()}.
+     */
+    private long approximateSize = -1;
+
+    /**
+     * The items of this snapshot, built in advance off the main thread when
+     * it is about to be applied, and released once applied. Only accessed
+     * from the main thread.
+     */
+    private MaterializedItems materialized = null;
+
 
     /**
      * Creates a snapshot of a player using the given data. You should use
@@ -99,13 +137,20 @@ public class PlayerSnapshot
      * @param maxHealth  The player's maximal health.
      * @param inventory  The player's inventory snapshot.
      * @param enderChest The player's ender chest snapshot.
-     * @param armor      The player's armor snapshot.
+     * @param armor      The player's armor snapshot, from the boots to the
+     *                   helmet. Merged into the inventory armor slots, if
+     *                   these are empty.
      * @param effects    The player's potion effects.
      *
      * @see #snap(Player) Easier method to create a snapshot that you should
      * use.
      */
     public PlayerSnapshot(int level, float exp, int expTotal, int foodLevel, float exhaustion, float saturation, double health, double maxHealth, Map<Integer, ItemStackSnapshot> inventory, Map<Integer, ItemStackSnapshot> enderChest, ItemStackSnapshot[] armor, Collection<PotionEffect> effects)
+    {
+        this(level, exp, expTotal, foodLevel, exhaustion, saturation, health, maxHealth, withArmor(inventory, armor), ItemSlots.of(enderChest), effects);
+    }
+
+    PlayerSnapshot(int level, float exp, int expTotal, int foodLevel, float exhaustion, float saturation, double health, double maxHealth, ItemSlots inventory, ItemSlots enderChest, Collection<PotionEffect> effects)
     {
         this.level = level;
         this.exp = exp;
@@ -117,10 +162,29 @@ public class PlayerSnapshot
         this.maxHealth = maxHealth;
         this.inventory = inventory;
         this.enderChest = enderChest;
-        this.armor = armor;
         this.effects = effects;
     }
 
+    /**
+     * Merges a separate armor snapshot into the inventory, in the armor
+     * slots, unless the inventory already has items there.
+     *
+     * @param inventory The inventory snapshot.
+     * @param armor     The armor snapshot, from the boots to the helmet.
+     *
+     * @return The inventory slots, including the armor.
+     */
+    private static ItemSlots withArmor(final Map<Integer, ItemStackSnapshot> inventory, final ItemStackSnapshot[] armor)
+    {
+        final Map<Integer, ItemStackSnapshot> slots = new HashMap<>(inventory);
+
+        for (int i = 0; i < armor.length && i < ARMOR_SLOTS; i++)
+            if (armor[i] != null && slots.get(ARMOR_FIRST_SLOT + i) == null)
+                slots.put(ARMOR_FIRST_SLOT + i, armor[i]);
+
+        return ItemSlots.of(slots);
+    }
+
     /**
      * Creates a snapshot of a player.
      *
@@ -147,10 +211,7 @@ public class PlayerSnapshot
     {
         if (player == null) return null;
 
-        final ItemStackSnapshot[] snapArmor = Arrays.stream(player.getInventory().getArmorContents())
-                                                    .map(ItemStackSnapshot::snap)
-                                                    .toArray(ItemStackSnapshot[]::new);
-
+        // The player inventory contents include the armor and off-hand slots.
         return new PlayerSnapshot(
                 player.getLevel(),
                 player.getExp(),
@@ -160,82 +221,154 @@ public class PlayerSnapshot
                 !fromRespawn ? player.getSaturation() : 5,
                 !fromRespawn ? player.getHealth() : player.getMaxHealth(),
                 player.getMaxHealth(),
-                snapInventory(player.getInventory()),
-                snapInventory(player.getEnderChest()),
-                snapArmor,
+                ItemSlots.snap(player.getInventory().getContents()),
+                ItemSlots.snap(player.getEnderChest().getContents()),
                 player.getActivePotionEffects()
         );
     }
 
     /**
-     * Creates a snapshot of an inventory.
+     * Applies the snapshot on the given player.
      *
-     * @param inventory The inventory.
+     * This will restore all the player properties and inventories as they
+     * were when the snapshot was taken. Only what differs from the player's
+     * current state is updated, so the slots holding the same items in both
+     * (e.g. a kit shared by several groups) are not sent again to the client.
      *
-     * @return The snapshot.
+     * @param player The player.
      */
-    private static Map<Integer, ItemStackSnapshot> snapInventory(final Inventory inventory)
+    public void reconstruct(final Player player)
     {
-        final Map<Integer, ItemStackSnapshot> snap = new HashMap<>();
-        final ListIterator<ItemStack> iterator = inventory.iterator();
+        if (player.getLevel() != level) player.setLevel(level);
+        if (player.getExp() != exp) player.setExp(exp);
+        if (expTotal >= 0 && player.getTotalExperience() != expTotal) player.setTotalExperience(expTotal);
+        if (player.getFoodLevel() != foodLevel) player.setFoodLevel(foodLevel);
+        if (player.getExhaustion() != exhaustion) player.setExhaustion(exhaustion);
+        if (player.getSaturation() != saturation) player.setSaturation(saturation);
 
-        while (iterator.hasNext())
-        {
-            final int index = iterator.nextIndex();
-            final ItemStack item = iterator.next();
+        // The maximal health first, so the health is never above it.
+        if (player.getMaxHealth() != maxHealth) player.setMaxHealth(maxHealth);
+        if (player.getHealth() != health) player.setHealth(health);
 
-            if (item != null && item.getType() != Material.AIR)
-                snap.put(index, ItemStackSnapshot.snap(item));
-        }
+        // Built in advance if this snapshot was prepared, else here.
+        final MaterializedItems items = materialized != null ? materialized : buildItems();
+        materialized = null;
+
+        reconstructInventory(player.getInventory(), items.inventory);
+        reconstructInventory(player.getEnderChest(), items.enderChest);
 
-        return snap;
+        reconstructEffects(player);
     }
 
     /**
-     * Applies the snapshot on the given player.
+     * Updates the slots of the given inventory that differ from the given
+     * items.
      *
-     * This will restore all the player properties, and clear then reload his
-     * inventory as it was when the snapshot was taken.
+     * @param inventory The inventory to reconstruct.
+     * @param items     The items to put in, by slot. Missing slots are
+     *                  emptied; extra ones are ignored.
+     */
+    private static void reconstructInventory(final Inventory inventory, final ItemStack[] items)
+    {
+        final ItemStack[] current = inventory.getContents();
+
+        for (int slot = 0; slot < current.length; slot++)
+        {
+            final ItemStack item = slot < items.length ? items[slot] : null;
+            if (!isSameStack(current[slot], item)) inventory.setItem(slot, item);
+        }
+    }
+
+    /**
+     * Replaces the player's potion effects by the ones of this snapshot,
+     * keeping the identical ones untouched.
      *
      * @param player The player.
      */
-    public void reconstruct(final Player player)
+    private void reconstructEffects(final Player player)
     {
-        player.setLevel(level);
-        player.setExp(exp);
-        if (expTotal >= 0) player.setTotalExperience(expTotal);
-        player.setFoodLevel(foodLevel);
-        player.setExhaustion(exhaustion);
-        player.setSaturation(saturation);
-        player.setHealth(health);
-        player.setMaxHealth(maxHealth);
+        final Collection<PotionEffect> currentEffects = player.getActivePotionEffects();
+        if (currentEffects.isEmpty() && effects.isEmpty()) return;
 
-        reconstructInventory(player.getInventory(), inventory);
-        reconstructInventory(player.getEnderChest(), enderChest);
+        final List<PotionEffect> toApply = new ArrayList<>(effects);
 
-        final ItemStack[] newArmor = new ItemStack[player.getInventory().getArmorContents().length];
-        for (int i = 0; i < armor.length; i++)
+        for (final PotionEffect current : currentEffects)
         {
-            newArmor[i] = armor[i] != null ? armor[i].reconstruct() : null;
+            // A potion effect cannot be replaced by a weaker one, so differing ones are removed first.
+            if (!toApply.remove(current)) player.removePotionEffect(current.getType());
         }
 
-        player.getInventory().setArmorContents(newArmor);
+        toApply.forEach(effect -> effect.apply(player));
+    }
 
-        player.getActivePotionEffects().stream().map(PotionEffect::getType).forEach(player::removePotionEffect);
+    /**
+     * @return {@code true} if both stacks are empty, or equal (same item,
+     * data and amount).
+     */
+    private static boolean isSameStack(final ItemStack a, final ItemStack b)
+    {
+        final boolean aEmpty = a == null || a.getType() == Material.AIR;
+        final boolean bEmpty = b == null || b.getType() == Material.AIR;
 
-        effects.forEach(effect -> effect.apply(player));
+        if (aEmpty || bEmpty) return aEmpty == bEmpty;
+        return a.equals(b);
     }
 
     /**
-     * Clears then reconstructs from the snapshot the given inventory.
+     * Builds the items of this snapshot, so that applying it on the main
+     * thread is only a matter of a few {@code setItem} calls. Can be called
+     * from any thread.
      *
-     * @param inventory The inventory to reconstruct.
-     * @param snapshot  The snapshot to apply.
+     * @return The items.
      */
-    private void reconstructInventory(final Inventory inventory, final Map<Integer, ItemStackSnapshot> snapshot)
+    MaterializedItems buildItems()
     {
-        inventory.clear();
-        snapshot.forEach((index, itemSnapshot) -> inventory.setItem(index, itemSnapshot.reconstruct()));
+        return new MaterializedItems(inventory.reconstruct(), enderChest.reconstruct());
+    }
+
+    /**
+     * Keeps items built in advance, to be used by the next {@link
+     * #reconstruct(Player)}. Must be called from the main thread.
+     *
+     * @param items The items, built by {@link #buildItems()}.
+     */
+    void setMaterializedItems(final MaterializedItems items)
+    {
+        materialized = items;
+    }
+
+    /**
+     * Releases the items built in advance, if any, e.g. when this snapshot is
+     * replaced by a newer one. Must be called from the main thread.
+     */
+    void invalidateMaterialized()
+    {
+        materialized = null;
+    }
+
+    /**
+     * Estimates the memory used by this snapshot, including the items built
+     * in advance to apply it, if any. This is a rough estimation, used to
+     * bound the amount of snapshots kept in memory. Once the data of all the
+     * items is extracted, it is computed once and cached, as the snapshot
+     * never changes.
+     *
+     * @return The approximate size of this snapshot, in bytes.
+     */
+    public long getApproximateSize()
+    {
+        long size = approximateSize;
+
+        if (size < 0)
+        {
+            size = 128 + 64L * effects.size() + inventory.getApproximateSize() + enderChest.getApproximateSize();
+
+            // Until then, items sizes are only estimated.
+            if (inventory.isCaptured() && enderChest.isCaptured()) approximateSize = size;
+        }
+
+        // The prebuilt items are full ItemStacks, so roughly twice the snapshot data.
+        return materialized != null ? 3 * size : size;
     }
 
 
@@ -255,58 +388,81 @@ public class PlayerSnapshot
      */
     public JsonElement toJSON()
     {
-        final JsonObject dump = new JsonObject();
-        final JsonArray armorDump = new JsonArray();
-        final JsonArray effectsDump = new JsonArray();
+        return new JsonParser().parse(toJSONString());
+    }
+
+    /**
+     * Writes a JSON export of this snapshot (including inventories and {@link
+     * ItemStackSnapshot item snapshots}), directly into the given writer,
+     * without building an intermediate JSON tree.
+     *
+     * @param writer The writer, created using {@link #newJsonWriter(Writer)}.
+     *
+     * @throws IOException if the export cannot be written.
+     */
+    public void toJSON(final JsonWriter writer) throws IOException
+    {
+        writer.beginObject();
 
-        Arrays.stream(armor).map(item -> item != null ? item.toJSON() : JsonNull.INSTANCE).forEachOrdered(armorDump::add);
+        writer.name("level").value((Number) level);
+        writer.name("exp").value((Number) exp);
+        writer.name("expTotal").value((Number) expTotal);
+        writer.name("foodLevel").value((Number) foodLevel);
+        writer.name("exhaustion").value((Number) exhaustion);
+        writer.name("saturation").value((Number) saturation);
+        writer.name("health").value((Number) health);
+        writer.name("maxHealth").value((Number) maxHealth);
 
-        effects.stream().map(this::toJSON).forEach(effectsDump::add);
+        writer.name("inventory");
+        toJSON(writer, inventory);
 
-        dump.addProperty("level", level);
-        dump.addProperty("exp", exp);
-        dump.addProperty("expTotal", expTotal);
-        dump.addProperty("foodLevel", foodLevel);
-        dump.addProperty("exhaustion", exhaustion);
-        dump.addProperty("saturation", saturation);
-        dump.addProperty("health", health);
-        dump.addProperty("maxHealth", maxHealth);
+        writer.name("enderChest");
+        toJSON(writer, enderChest);
 
-        dump.add("armor", armorDump);
-        dump.add("inventory", toJSON(inventory));
-        dump.add("enderChest", toJSON(enderChest));
-        dump.add("effects", effectsDump);
+        writer.name("effects").beginArray();
+        for (final PotionEffect effect : effects)
+        {
+            toJSON(writer, effect);
+        }
+        writer.endArray();
 
-        return dump;
+        writer.endObject();
     }
 
     /**
-     * @return A JSON export of an inventory.
+     * Writes a JSON export of an inventory.
      */
-    private JsonElement toJSON(final Map<Integer, ItemStackSnapshot> inventory)
+    private static void toJSON(final JsonWriter writer, final ItemSlots inventory) throws IOException
     {
-        final JsonObject dump = new JsonObject();
+        writer.beginObject();
 
-        inventory.forEach((index, itemSnapshot) -> dump.add(index.toString(), itemSnapshot != null ? itemSnapshot.toJSON() : JsonNull.INSTANCE));
+        for (int slot = 0; slot < inventory.size(); slot++)
+        {
+            final ItemStackSnapshot item = inventory.get(slot);
+            if (item == null) continue;
 
-        return dump;
+            writer.name(Integer.toString(slot));
+            item.toJSON(writer);
+        }
+
+        writer.endObject();
     }
 
     /**
-     * @return A JSON export of the given potion effect.
+     * Writes a JSON export of the given potion effect.
      */
-    private JsonElement toJSON(final PotionEffect effect)
+    private static void toJSON(final JsonWriter writer, final PotionEffect effect) throws IOException
     {
-        final JsonObject dump = new JsonObject();
+        writer.beginObject();
 
-        dump.addProperty("type", effect.getType().getName());
-        dump.addProperty("duration", effect.getDuration());
-        dump.addProperty("amplifier", effect.getAmplifier());
-        dump.addProperty("ambient", effect.isAmbient());
-        dump.addProperty("has-particles", effect.hasParticles());
-        dump.addProperty("has-icon", effect.hasIcon());
+        writer.name("type").value(effect.getType().getName());
+        writer.name("duration").value((Number) effect.getDuration());
+        writer.name("amplifier").value((Number) effect.getAmplifier());
+        writer.name("ambient").value(effect.isAmbient());
+        writer.name("has-particles").value(effect.hasParticles());
+        writer.name("has-icon").value(effect.hasIcon());
 
-        return dump;
+        writer.endObject();
     }
 
     /**
@@ -315,7 +471,62 @@ public class PlayerSnapshot
      */
     public String toJSONString()
     {
-        return MultipleInventories.GSON.toJson(toJSON());
+        final StringWriter json = new StringWriter();
+
+        try (final JsonWriter writer = newJsonWriter(json))
+        {
+            toJSON(writer);
+        }
+        catch (final IOException e)
+        {
+            throw new JsonIOException(e);
+        }
+
+        return json.toString();
+    }
+
+    /**
+     * Encodes this snapshot to UTF-8 JSON, using a buffer reused across calls
+     * on the same thread.
+     *
+     * @return The UTF-8 JSON export of this snapshot (including inventories
+     * and {@link ItemStackSnapshot item snapshots}).
+     * @throws IOException if the export cannot be written.
+     */
+    public byte[] toJSONBytes() throws IOException
+    {
+        final ByteArrayOutputStream buffer = JSON_BUFFERS.get();
+        buffer.reset();
+
+        final JsonWriter writer = newJsonWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+        toJSON(writer);
+        writer.flush();
+
+        final byte[] json = buffer.toByteArray();
+
+        // Avoids keeping huge buffers around after an unusually big snapshot.
+        if (buffer.size() > MAX_RETAINED_JSON_BUFFER) JSON_BUFFERS.remove();
+
+        return json;
+    }
+
+    /**
+     * Creates a JSON writer configured like {@link MultipleInventories#GSON},
+     * so the streamed exports are formatted like the ones Gson produced.
+     *
+     * @param out The underlying writer.
+     *
+     * @return A JSON writer.
+     */
+    static JsonWriter newJsonWriter(final Writer out)
+    {
+        final JsonWriter writer = new JsonWriter(out);
+
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(true);
+        writer.setLenient(true);
+
+        return writer;
     }
 
     /**
@@ -328,7 +539,14 @@ public class PlayerSnapshot
      */
     public static PlayerSnapshot fromJSONString(final String json)
     {
-        return fromJSON((new JsonParser().parse(json)).getAsJsonObject());
+        try
+        {
+            return fromJSON(new StringReader(json));
+        }
+        catch (final IOException e)
+        {
+            throw new JsonSyntaxException(e);
+        }
     }
 
     /**
@@ -341,95 +559,347 @@ public class PlayerSnapshot
      */
     public static PlayerSnapshot fromJSON(final JsonObject json)
     {
-        final JsonArray jsonArmor = json.getAsJsonArray("armor");
-        final ItemStackSnapshot[] armor = new ItemStackSnapshot[jsonArmor.size()];
+        return fromJSONString(json.toString());
+    }
 
-        for (int i = 0; i < jsonArmor.size(); i++)
+    /**
+     * Constructs a snapshot from a JSON export (including {@link
+     * ItemStackSnapshot item snapshots} in the inventories), streaming it from
+     * the given reader, without building an intermediate JSON tree.
+     *
+     * @param json A reader on the JSON export.
+     *
+     * @return The snapshot.
+     * @throws IOException if the JSON export cannot be read or is malformed.
+     */
+    public static PlayerSnapshot fromJSON(final Reader json) throws IOException
+    {
+        try (final JsonReader reader = new JsonReader(json))
         {
-            final JsonElement armorItem = jsonArmor.get(i);
-            armor[i] = armorItem.isJsonObject() ? ItemStackSnapshot.fromJSON(armorItem.getAsJsonObject()) : null;
+            return fromJSON(reader);
         }
+        catch (final IllegalStateException | NumberFormatException e)
+        {
+            throw new IOException("Malformed JSON snapshot", e);
+        }
+    }
 
-        final JsonArray jsonEffects = json.get("effects").isJsonArray() ? json.getAsJsonArray("effects") : new JsonArray();
-        final List<PotionEffect> effects = Streams.stream(jsonEffects)
-                                                  .filter(jsonEffect -> jsonEffect != null && jsonEffect.isJsonObject())
-                                                  .map(jsonEffect -> potionEffectFromJSON(jsonEffect.getAsJsonObject()))
-                                                  .collect(Collectors.toList());
+    private static PlayerSnapshot fromJSON(final JsonReader reader) throws IOException
+    {
+        int level = 0;
+        float exp = 0f;
+        int expTotal = 0;
+        int foodLevel = 20;
+        float exhaustion = 0f;
+        float saturation = 5f;
+        double health = 20.0;
+        double maxHealth = 20.0;
+
+        ItemStackSnapshot[] armor = new ItemStackSnapshot[0];
+        Map<Integer, ItemStackSnapshot> inventory = new HashMap<>();
+        Map<Integer, ItemStackSnapshot> enderChest = new HashMap<>();
+        final List<PotionEffect> effects = new ArrayList<>();
+
+        reader.beginObject();
+
+        while (reader.hasNext())
+        {
+            final String name = reader.nextName();
 
-        return new PlayerSnapshot(
-                isNull(json, "level")      ? 0    : json.getAsJsonPrimitive("level").getAsInt(),
-                isNull(json, "exp")        ? 0.0f : json.getAsJsonPrimitive("exp").getAsFloat(),
-                isNull(json, "expTotal")   ? 0    : json.getAsJsonPrimitive("expTotal").getAsInt(),
-                isNull(json, "foodLevel")  ? 20   : json.getAsJsonPrimitive("foodLevel").getAsInt(),
-                isNull(json, "exhaustion") ? 0f   : json.getAsJsonPrimitive("exhaustion").getAsFloat(),
-                isNull(json, "saturation") ? 5f   : json.getAsJsonPrimitive("saturation").getAsFloat(),
-                isNull(json, "health")     ? 20.0 : json.getAsJsonPrimitive("health").getAsDouble(),
-                isNull(json, "maxHealth")  ? 20.0 : json.getAsJsonPrimitive("maxHealth").getAsDouble(),
-                inventoryFromJSON(json.getAsJsonObject("inventory")),
-                inventoryFromJSON(json.getAsJsonObject("enderChest")),
-                armor,
-                effects
-        );
+            if (reader.peek() == JsonToken.NULL)
+            {
+                reader.nextNull();
+                continue;
+            }
+
+            switch (name)
+            {
+                case "level":      level = reader.nextInt(); break;
+                case "exp":        exp = Float.parseFloat(reader.nextString()); break;
+                case "expTotal":   expTotal = reader.nextInt(); break;
+                case "foodLevel":  foodLevel = reader.nextInt(); break;
+                case "exhaustion": exhaustion = Float.parseFloat(reader.nextString()); break;
+                case "saturation": saturation = Float.parseFloat(reader.nextString()); break;
+                case "health":     health = reader.nextDouble(); break;
+                case "maxHealth":  maxHealth = reader.nextDouble(); break;
+
+                case "armor":
+                    // Exports written before the armor was stored in the inventory slots.
+                    final List<ItemStackSnapshot> armorItems = new ArrayList<>();
+
+                    reader.beginArray();
+                    while (reader.hasNext())
+                    {
+                        if (reader.peek() == JsonToken.BEGIN_OBJECT)
+                        {
+                            armorItems.add(ItemStackSnapshot.fromJSON(reader));
+                        }
+                        else
+                        {
+                            reader.skipValue();
+                            armorItems.add(null);
+                        }
+                    }
+                    reader.endArray();
+
+                    armor = armorItems.toArray(new ItemStackSnapshot[0]);
+                    break;
+
+                case "inventory":
+                    inventory = inventoryFromJSON(reader);
+                    break;
+
+                case "enderChest":
+                    enderChest = inventoryFromJSON(reader);
+                    break;
+
+                case "effects":
+                    if (reader.peek() != JsonToken.BEGIN_ARRAY)
+                    {
+                        reader.skipValue();
+                        break;
+                    }
+
+                    reader.beginArray();
+                    while (reader.hasNext())
+                    {
+                        if (reader.peek() == JsonToken.BEGIN_OBJECT)
+                        {
+                            final PotionEffect effect = potionEffectFromJSON(reader);
+                            if (effect != null) effects.add(effect);
+                        }
+                        else
+                        {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endArray();
+                    break;
+
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+
+        return new PlayerSnapshot(level, exp, expTotal, foodLevel, exhaustion, saturation, health, maxHealth, inventory, enderChest, armor, effects);
     }
 
     /**
      * Imports an inventory snapshot from a JSON export.
      *
-     * @param json The JSON export.
+     * @param reader The reader, positioned on the JSON inventory export.
      *
      * @return The inventory snapshot.
+     * @throws IOException if the JSON is malformed.
      */
-    private static Map<Integer, ItemStackSnapshot> inventoryFromJSON(final JsonObject json)
+    private static Map<Integer, ItemStackSnapshot> inventoryFromJSON(final JsonReader reader) throws IOException
     {
         final Map<Integer, ItemStackSnapshot> snapshot = new HashMap<>();
 
-        json.entrySet().forEach(jsonItemEntry ->
+        reader.beginObject();
+
+        while (reader.hasNext())
         {
-            if (!jsonItemEntry.getValue().isJsonObject()) return;
+            final String index = reader.nextName();
+
+            if (reader.peek() != JsonToken.BEGIN_OBJECT)
+            {
+                reader.skipValue();
+                continue;
+            }
+
+            final ItemStackSnapshot item = ItemStackSnapshot.fromJSON(reader);
 
             try
             {
-                snapshot.put(Integer.parseInt(jsonItemEntry.getKey()), ItemStackSnapshot.fromJSON(jsonItemEntry.getValue().getAsJsonObject()));
+                if (item != null) snapshot.put(Integer.parseInt(index), item);
             }
             catch (NumberFormatException e)
             {
-                PluginLogger.error("Skipping item with invalid index {0} from JSON snapshot", jsonItemEntry.getKey());
+                PluginLogger.error("Skipping item with invalid index {0} from JSON snapshot", index);
             }
-        });
+        }
+
+        reader.endObject();
 
         return snapshot;
     }
 
-    private static PotionEffect potionEffectFromJSON(final JsonObject json)
+    /**
+     * @return A compact binary export of this snapshot (including inventories
+     * and {@link ItemStackSnapshot item snapshots}), keeping the exact types of
+     * the NBT data.
+     * @throws IOException if the snapshot cannot be written.
+     */
+    public byte[] toBinary() throws IOException
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+
+        out.write(BINARY_HEADER);
+
+        out.writeInt(level);
+        out.writeFloat(exp);
+        out.writeInt(expTotal);
+        out.writeInt(foodLevel);
+        out.writeFloat(exhaustion);
+        out.writeFloat(saturation);
+        out.writeDouble(health);
+        out.writeDouble(maxHealth);
+
+        inventory.toBinary(out);
+        enderChest.toBinary(out);
+
+        VarInts.write(out, effects.size());
+        for (final PotionEffect effect : effects)
+        {
+            out.writeUTF(effect.getType().getName());
+            out.writeInt(effect.getDuration());
+            out.writeInt(effect.getAmplifier());
+            out.writeBoolean(effect.isAmbient());
+            out.writeBoolean(effect.hasParticles());
+            out.writeBoolean(effect.hasIcon());
+        }
+
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @param payload An encoded snapshot.
+     *
+     * @return {@code true} if this snapshot was encoded using {@link
+     * #toBinary()}.
+     */
+    static boolean isBinary(final byte[] payload)
+    {
+        if (payload.length < BINARY_HEADER.length) return false;
+
+        for (int i = 0; i < BINARY_HEADER.length - 1; i++)
+            if (payload[i] != BINARY_HEADER[i]) return false;
+
+        return true;
+    }
+
+    /**
+     * Constructs a snapshot from a binary export (including {@link
+     * ItemStackSnapshot item snapshots} in the inventories).
+     *
+     * @param payload The binary export.
+     *
+     * @return The snapshot.
+     * @throws IOException if the export is malformed.
+     */
+    public static PlayerSnapshot fromBinary(final byte[] payload) throws IOException
+    {
+        if (!isBinary(payload))
+            throw new IOException("Not a binary snapshot");
+
+        final byte version = payload[BINARY_HEADER.length - 1];
+        if (version != BINARY_HEADER[BINARY_HEADER.length - 1])
+            throw new IOException("Unsupported binary snapshot version " + version);
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, BINARY_HEADER.length, payload.length - BINARY_HEADER.length));
+
+        final int level = in.readInt();
+        final float exp = in.readFloat();
+        final int expTotal = in.readInt();
+        final int foodLevel = in.readInt();
+        final float exhaustion = in.readFloat();
+        final float saturation = in.readFloat();
+        final double health = in.readDouble();
+        final double maxHealth = in.readDouble();
+
+        final ItemSlots inventory = ItemSlots.fromBinary(in);
+        final ItemSlots enderChest = ItemSlots.fromBinary(in);
+
+        final int effectsCount = VarInts.read(in);
+        final List<PotionEffect> effects = new ArrayList<>(effectsCount);
+
+        for (int i = 0; i < effectsCount; i++)
+        {
+            final PotionEffectType type = PotionEffectType.getByName(in.readUTF());
+            final int duration = in.readInt();
+            final int amplifier = in.readInt();
+            final boolean ambient = in.readBoolean();
+            final boolean particles = in.readBoolean();
+            final boolean icon = in.readBoolean();
+
+            if (type != null) effects.add(createPotionEffect(type, duration, amplifier, ambient, particles, icon));
+        }
+
+        return new PlayerSnapshot(level, exp, expTotal, foodLevel, exhaustion, saturation, health, maxHealth, inventory, enderChest, effects);
+    }
+
+    private static PotionEffect potionEffectFromJSON(final JsonReader reader) throws IOException
+    {
+        PotionEffectType type = null;
+        int duration = 1;
+        int amplifier = 1;
+        boolean ambient = false;
+        boolean particles = true;
+        boolean icon = true;
+
+        reader.beginObject();
+
+        while (reader.hasNext())
+        {
+            final String name = reader.nextName();
+
+            if (reader.peek() == JsonToken.NULL)
+            {
+                reader.nextNull();
+                continue;
+            }
+
+            switch (name)
+            {
+                case "type":          type = PotionEffectType.getByName(reader.nextString()); break;
+                case "duration":      duration = reader.nextInt(); break;
+                case "amplifier":     amplifier = reader.nextInt(); break;
+                case "ambient":       ambient = reader.nextBoolean(); break;
+                case "has-particles": particles = reader.nextBoolean(); break;
+                case "has-icon":      icon = reader.nextBoolean(); break;
+                default:              reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+
+        return type != null ? createPotionEffect(type, duration, amplifier, ambient, particles, icon) : null;
+    }
+
+    private static PotionEffect createPotionEffect(final PotionEffectType type, final int duration, final int amplifier, final boolean ambient, final boolean particles, final boolean icon)
     {
         // 1.13+: there is no longer a color, but there is a `has-icon` flag.
         try
         {
-            return Reflection.instantiate(PotionEffect.class,
-                PotionEffectType.getByName(json.getAsJsonPrimitive("type").getAsString()),
-                isNull(json, "duration") ? 1 : json.getAsJsonPrimitive("duration").getAsInt(),
-                isNull(json, "amplifier") ? 1 : json.getAsJsonPrimitive("amplifier").getAsInt(),
-                !isNull(json, "ambient") && json.getAsJsonPrimitive("ambient").getAsBoolean(),
-                isNull(json, "has-particles") || json.getAsJsonPrimitive("has-particles").getAsBoolean(),
-                isNull(json, "has-icon") || json.getAsJsonPrimitive("has-icon").getAsBoolean()
-            );
+            return Reflection.instantiate(PotionEffect.class, type, duration, amplifier, ambient, particles, icon);
         }
         catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException ex)
         {
             // This one should always work
-            return new PotionEffect(
-                PotionEffectType.getByName(json.getAsJsonPrimitive("type").getAsString()),
-                isNull(json, "duration") ? 1 : json.getAsJsonPrimitive("duration").getAsInt(),
-                isNull(json, "amplifier") ? 1 : json.getAsJsonPrimitive("amplifier").getAsInt(),
-                !isNull(json, "ambient") && json.getAsJsonPrimitive("ambient").getAsBoolean(),
-                isNull(json, "has-particles") || json.getAsJsonPrimitive("has-particles").getAsBoolean()
-            );
+            return new PotionEffect(type, duration, amplifier, ambient, particles);
         }
     }
 
-    private static boolean isNull(final JsonObject element, final String child)
+
+
+    /**
+     * Items reconstructed from a snapshot, ready to be put in the player's
+     * inventories.
+     */
+    static final class MaterializedItems
     {
-        final JsonElement childElement = element.get(child);
-        return childElement == null || childElement.isJsonNull();
+        private final ItemStack[] inventory;
+        private final ItemStack[] enderChest;
+
+        private MaterializedItems(final ItemStack[] inventory, final ItemStack[] enderChest)
+        {
+            this.inventory = inventory;
+            this.enderChest = enderChest;
+        }
     }
 }
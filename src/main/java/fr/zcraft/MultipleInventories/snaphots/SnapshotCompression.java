@@ -0,0 +1,269 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+package fr.zcraft.MultipleInventories.snaphots;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+
+/**
+ * The compressions that can be applied to encoded snapshots before storing
+ * them.
+ *
+ * <p>Compressed snapshots start with a small header ("MIZ", the compression
+ * used, the identifier of the preset dictionary if any, and the uncompressed
+ * length), so compressed and uncompressed snapshots can be mixed: anything
+ * without this header is loaded as-is.</p>
+ */
+public enum SnapshotCompression
+{
+    /**
+     * Snapshots are stored uncompressed.
+     */
+    NONE((byte) 0),
+
+    /**
+     * Snapshots are compressed using DEFLATE, with the preset dictionary if
+     * one is configured.
+     */
+    DEFLATE((byte) 1),
+
+    /**
+     * Snapshots are compressed using GZIP. Preset dictionaries are not
+     * supported by this format.
+     */
+    GZIP((byte) 2);
+
+
+    private static final byte[] MAGIC = {'M', 'I', 'Z'};
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + 4;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private static volatile byte[] dictionary = null;
+    private static volatile int dictionaryID = 0;
+
+    private final byte id;
+
+    SnapshotCompression(final byte id)
+    {
+        this.id = id;
+    }
+
+    /**
+     * Sets the preset dictionary used by the {@link #DEFLATE} compression.
+     * A good dictionary contains strings frequently found in snapshots (e.g.
+     * a concatenation of a few typical snapshots); only its last 32 KiB are
+     * used.
+     *
+     * Snapshots compressed with a dictionary can only be read using the same
+     * dictionary.
+     *
+     * @param presetDictionary The dictionary, or {@code null} to compress
+     *                         without dictionary.
+     */
+    public static void setDictionary(final byte[] presetDictionary)
+    {
+        if (presetDictionary == null || presetDictionary.length == 0)
+        {
+            dictionary = null;
+            dictionaryID = 0;
+        }
+        else
+        {
+            final Adler32 checksum = new Adler32();
+            checksum.update(presetDictionary, 0, presetDictionary.length);
+
+            dictionary = presetDictionary;
+            dictionaryID = (int) checksum.getValue();
+        }
+    }
+
+    /**
+     * Compresses an encoded snapshot.
+     *
+     * @param payload The encoded snapshot.
+     *
+     * @return The compressed snapshot, with its header; or the payload itself
+     * for {@link #NONE}.
+     * @throws IOException if the snapshot cannot be compressed.
+     */
+    public byte[] compress(final byte[] payload) throws IOException
+    {
+        if (this == NONE) return payload;
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(payload.length / 3 + HEADER_LENGTH);
+        final byte[] presetDictionary = this == DEFLATE ? dictionary : null;
+
+        buffer.write(MAGIC);
+        buffer.write(id);
+        buffer.write(ByteBuffer.allocate(8).putInt(presetDictionary != null ? dictionaryID : 0).putInt(payload.length).array());
+
+        if (this == GZIP)
+        {
+            try (final GZIPOutputStream out = new GZIPOutputStream(buffer))
+            {
+                out.write(payload);
+            }
+        }
+        else
+        {
+            final Deflater deflater = DEFLATERS.get();
+            final byte[] chunk = new byte[4096];
+
+            try
+            {
+                if (presetDictionary != null) deflater.setDictionary(presetDictionary);
+
+                deflater.setInput(payload);
+                deflater.finish();
+
+                while (!deflater.finished())
+                {
+                    buffer.write(chunk, 0, deflater.deflate(chunk));
+                }
+            }
+            finally
+            {
+                deflater.reset();
+            }
+        }
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Decompresses a stored snapshot, whatever the compression used to store
+     * it.
+     *
+     * @param stored The stored snapshot.
+     *
+     * @return The encoded snapshot, ready to be decoded. If the snapshot was
+     * not compressed, it is returned as-is.
+     * @throws IOException if the snapshot cannot be decompressed.
+     */
+    public static byte[] decompress(final byte[] stored) throws IOException
+    {
+        if (!isCompressed(stored)) return stored;
+
+        final ByteBuffer header = ByteBuffer.wrap(stored, MAGIC.length + 1, 8);
+        final int storedDictionaryID = header.getInt();
+        final int length = header.getInt();
+
+        if (length < 0)
+            throw new IOException("Invalid uncompressed snapshot length " + length);
+
+        final byte[] payload = new byte[length];
+
+        final byte compressionID = stored[MAGIC.length];
+
+        if (compressionID == DEFLATE.id)
+        {
+            final Inflater inflater = INFLATERS.get();
+
+            try
+            {
+                inflater.setInput(stored, HEADER_LENGTH, stored.length - HEADER_LENGTH);
+
+                int read = 0;
+                while (read < length && !inflater.finished())
+                {
+                    final int inflated = inflater.inflate(payload, read, length - read);
+
+                    if (inflated == 0 && inflater.needsDictionary())
+                    {
+                        final byte[] presetDictionary = dictionary;
+                        if (presetDictionary == null || dictionaryID != storedDictionaryID)
+                            throw new IOException("This snapshot was compressed using another preset dictionary than the one configured");
+
+                        inflater.setDictionary(presetDictionary);
+                    }
+                    else if (inflated == 0 && inflater.needsInput())
+                    {
+                        throw new IOException("Truncated compressed snapshot");
+                    }
+
+                    read += inflated;
+                }
+
+                if (read < length) throw new IOException("Truncated compressed snapshot");
+            }
+            catch (final DataFormatException e)
+            {
+                throw new IOException("Malformed compressed snapshot", e);
+            }
+            finally
+            {
+                inflater.reset();
+            }
+        }
+        else if (compressionID == GZIP.id)
+        {
+            try (final GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(stored, HEADER_LENGTH, stored.length - HEADER_LENGTH)))
+            {
+                int read = 0;
+                while (read < length)
+                {
+                    final int chunk = in.read(payload, read, length - read);
+                    if (chunk < 0) throw new IOException("Truncated compressed snapshot");
+
+                    read += chunk;
+                }
+            }
+        }
+        else
+        {
+            throw new IOException("Unsupported snapshot compression " + compressionID);
+        }
+
+        return payload;
+    }
+
+    private static boolean isCompressed(final byte[] stored)
+    {
+        if (stored.length < HEADER_LENGTH) return false;
+
+        for (int i = 0; i < MAGIC.length; i++)
+            if (stored[i] != MAGIC[i]) return false;
+
+        return true;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+package fr.zcraft.MultipleInventories.snaphots;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * The formats snapshots can be encoded to before being stored. Whatever the
+ * format used to write, all formats are recognized when reading, so the format
+ * can be changed at any time.
+ */
+public enum SnapshotFormat
+{
+    /**
+     * Human-readable JSON export, useful for debugging or external tools.
+     */
+    JSON
+    {
+        @Override
+        public byte[] encode(final PlayerSnapshot snapshot) throws IOException
+        {
+            return snapshot.toJSONBytes();
+        }
+
+        @Override
+        public PlayerSnapshot decode(final byte[] payload) throws IOException
+        {
+            return PlayerSnapshot.fromJSON(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8));
+        }
+    },
+
+    /**
+     * Compact binary format, storing NBT data with their exact types.
+     */
+    BINARY
+    {
+        @Override
+        public byte[] encode(final PlayerSnapshot snapshot) throws IOException
+        {
+            return snapshot.toBinary();
+        }
+
+        @Override
+        public PlayerSnapshot decode(final byte[] payload) throws IOException
+        {
+            return PlayerSnapshot.fromBinary(payload);
+        }
+    };
+
+
+    /**
+     * Encodes a snapshot using this format.
+     *
+     * @param snapshot The snapshot.
+     *
+     * @return The encoded snapshot.
+     * @throws IOException if the snapshot cannot be encoded.
+     */
+    public abstract byte[] encode(PlayerSnapshot snapshot) throws IOException;
+
+    /**
+     * Decodes a snapshot encoded using this format.
+     *
+     * @param payload The encoded snapshot.
+     *
+     * @return The snapshot.
+     * @throws IOException if the payload is malformed.
+     */
+    public abstract PlayerSnapshot decode(byte[] payload) throws IOException;
+
+    /**
+     * Finds the format an encoded snapshot was written with.
+     *
+     * @param payload The encoded snapshot.
+     *
+     * @return The format to use to decode it.
+     */
+    public static SnapshotFormat detect(final byte[] payload)
+    {
+        return PlayerSnapshot.isBinary(payload) ? BINARY : JSON;
+    }
+}
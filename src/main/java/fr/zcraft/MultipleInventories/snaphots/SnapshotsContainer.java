@@ -0,0 +1,236 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+package fr.zcraft.MultipleInventories.snaphots;
+
+import org.bukkit.GameMode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * A single file holding all the encoded snapshots of a player, for every
+ * group and gamemode.
+ *
+ * <p>The file starts with a small index (magic number, format version, and
+ * for each entry its group, gamemode, offset and length), followed by the
+ * encoded snapshots themselves. Loading a player is a single open and a
+ * single sequential read, whatever the amount of groups configured.</p>
+ *
+ * <p>This class only manipulates the encoded payloads, and is not
+ * thread-safe: it is meant to be used from the snapshots I/O worker.</p>
+ */
+class SnapshotsContainer
+{
+    /**
+     * "MISC", for MultipleInventories Snapshots Container.
+     */
+    private static final int MAGIC = 0x4D495343;
+    private static final byte VERSION = 1;
+
+    private final Map<String, Map<GameMode, byte[]>> entries = new HashMap<>();
+
+
+    /**
+     * Reads a container from the disk.
+     *
+     * @param file The container file.
+     *
+     * @return The container, or {@code null} if the file does not exist.
+     * @throws IOException if the file cannot be read or is not a valid
+     *                     container.
+     */
+    static SnapshotsContainer read(final File file) throws IOException
+    {
+        if (!file.isFile()) return null;
+
+        final byte[] raw = Files.readAllBytes(file.toPath());
+        final SnapshotsContainer container = new SnapshotsContainer();
+
+        try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw)))
+        {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a snapshots container: " + file.getAbsolutePath());
+
+            final byte version = in.readByte();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshots container version " + version + ": " + file.getAbsolutePath());
+
+            final int count = in.readInt();
+            final String[] groups = new String[count];
+            final GameMode[] modes = new GameMode[count];
+            final int[] offsets = new int[count];
+            final int[] lengths = new int[count];
+
+            for (int i = 0; i < count; i++)
+            {
+                groups[i] = in.readUTF();
+                modes[i] = GameMode.valueOf(in.readUTF());
+                offsets[i] = in.readInt();
+                lengths[i] = in.readInt();
+            }
+
+            final int dataStart = raw.length - in.available();
+
+            for (int i = 0; i < count; i++)
+            {
+                final int start = dataStart + offsets[i];
+                if (offsets[i] < 0 || lengths[i] < 0 || start + lengths[i] > raw.length)
+                    throw new IOException("Truncated snapshots container: " + file.getAbsolutePath());
+
+                final byte[] payload = new byte[lengths[i]];
+                System.arraycopy(raw, start, payload, 0, lengths[i]);
+
+                container.put(groups[i], modes[i], payload);
+            }
+        }
+        catch (final IllegalArgumentException e)
+        {
+            throw new IOException("Invalid gamemode in snapshots container: " + file.getAbsolutePath(), e);
+        }
+
+        return container;
+    }
+
+    /**
+     * Writes this container to the disk. The file is first written next to
+     * the target, then moved over it, so a crash while writing never leaves a
+     * truncated container behind.
+     *
+     * @param file The container file.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    void write(final File file) throws IOException
+    {
+        final File directory = file.getParentFile();
+        if (!directory.mkdirs() && !(directory.exists() && directory.isDirectory()))
+            throw new IOException("Cannot write into the snapshots storage directory (cannot create folders)");
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+
+        int count = 0;
+        for (final Map<GameMode, byte[]> groupEntries : entries.values())
+            count += groupEntries.size();
+
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(count);
+
+        int offset = 0;
+        for (final Map.Entry<String, Map<GameMode, byte[]>> group : entries.entrySet())
+        {
+            for (final Map.Entry<GameMode, byte[]> entry : group.getValue().entrySet())
+            {
+                out.writeUTF(group.getKey());
+                out.writeUTF(entry.getKey().name());
+                out.writeInt(offset);
+                out.writeInt(entry.getValue().length);
+
+                offset += entry.getValue().length;
+            }
+        }
+
+        for (final Map<GameMode, byte[]> groupEntries : entries.values())
+            for (final byte[] payload : groupEntries.values())
+                out.write(payload);
+
+        out.flush();
+
+        final File temporaryFile = new File(directory, file.getName() + ".tmp");
+        Files.write(temporaryFile.toPath(), buffer.toByteArray());
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param group    The worlds group.
+     * @param gamemode The gamemode.
+     *
+     * @return The encoded snapshot, or {@code null} if none is stored.
+     */
+    byte[] get(final String group, final GameMode gamemode)
+    {
+        final Map<GameMode, byte[]> groupEntries = entries.get(group);
+        return groupEntries != null ? groupEntries.get(gamemode) : null;
+    }
+
+    /**
+     * Stores an encoded snapshot, replacing the previous one.
+     *
+     * @param group    The worlds group.
+     * @param gamemode The gamemode.
+     * @param payload  The encoded snapshot.
+     */
+    void put(final String group, final GameMode gamemode, final byte[] payload)
+    {
+        entries.computeIfAbsent(group, g -> new EnumMap<>(GameMode.class)).put(gamemode, payload);
+    }
+
+    /**
+     * @return The groups having at least one snapshot stored (read-only).
+     */
+    Set<String> getGroups()
+    {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * @param group The worlds group.
+     *
+     * @return The encoded snapshots of this group, per gamemode (read-only).
+     */
+    Map<GameMode, byte[]> getGroup(final String group)
+    {
+        final Map<GameMode, byte[]> groupEntries = entries.get(group);
+        return groupEntries != null ? Collections.unmodifiableMap(groupEntries) : Collections.emptyMap();
+    }
+
+    /**
+     * @return {@code true} if this container holds no snapshot at all.
+     */
+    boolean isEmpty()
+    {
+        return entries.isEmpty();
+    }
+}
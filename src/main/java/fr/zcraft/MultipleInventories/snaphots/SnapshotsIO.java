@@ -31,53 +31,277 @@
  */
 package fr.zcraft.MultipleInventories.snaphots;
 
+import fr.zcraft.MultipleInventories.Config;
 import fr.zcraft.MultipleInventories.MultipleInventories;
 import fr.zcraft.MultipleInventories.quartzlib.components.worker.Worker;
 import fr.zcraft.MultipleInventories.quartzlib.components.worker.WorkerAttributes;
 import fr.zcraft.MultipleInventories.quartzlib.components.worker.WorkerCallback;
 import fr.zcraft.MultipleInventories.quartzlib.components.worker.WorkerRunnable;
-import fr.zcraft.MultipleInventories.quartzlib.tools.FileUtils;
 import fr.zcraft.MultipleInventories.quartzlib.tools.PluginLogger;
 import org.bukkit.GameMode;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
 
 @WorkerAttributes (name = "multiple-inventories-snapshots-io")
 public class SnapshotsIO extends Worker
 {
-    private static File getFileForSnapshot(final UUID playerID, final String group, final GameMode gamemode)
+    /**
+     * Maximal time to wait for pending writes when the plugin is disabled.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 30_000L;
+
+    /**
+     * The latest snapshots waiting to be written, per player and slot. A save
+     * for a player with pending snapshots is merged into them, instead of
+     * queuing another write of the player's container.
+     */
+    private static final Map<UUID, Map<SnapshotSlot, PlayerSnapshot>> pendingSaves = new ConcurrentHashMap<>();
+
+    private static final AtomicLong savesRequested = new AtomicLong();
+    private static final AtomicLong savesCollapsed = new AtomicLong();
+
+    @Override
+    public void onEnable()
+    {
+        loadCompressionDictionary();
+        super.onEnable();
+    }
+
+    @Override
+    public void onDisable()
+    {
+        try
+        {
+            if (!awaitIdle(SHUTDOWN_TIMEOUT))
+                PluginLogger.warning("Timed out while writing snapshots on shutdown; {0} snapshot(s) may be lost.", getPendingSavesCount());
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        super.onDisable();
+    }
+
+    /**
+     * Snapshots are read and written by a pool of threads. Queries are
+     * partitioned by player, so the saves and loads of a player are always
+     * executed in order, while different players are processed in parallel.
+     *
+     * @return The amount of I/O threads, from the configuration.
+     */
+    @Override
+    protected int getThreadsCount()
+    {
+        return Config.IO_THREADS.get();
+    }
+
+    /**
+     * @return The time spent each tick applying loaded snapshots and reporting
+     * saves on the main thread, in milliseconds, from the configuration.
+     */
+    @Override
+    protected long getCallbacksTimeBudget()
+    {
+        return Config.IO_CALLBACKS_TIME_BUDGET.get();
+    }
+
+    /**
+     * @return The amount of completed loads and saves waiting to be handled
+     * on the main thread.
+     */
+    public static int getCallbacksQueueDepth()
+    {
+        return getCallbacksQueueSize();
+    }
+
+    /**
+     * (Re)loads the preset dictionary used to compress snapshots, from the
+     * file set in the configuration.
+     */
+    public static void loadCompressionDictionary()
+    {
+        final String dictionaryPath = Config.SNAPSHOTS_COMPRESSION_DICTIONARY.get();
+
+        if (dictionaryPath == null || dictionaryPath.trim().isEmpty())
+        {
+            SnapshotCompression.setDictionary(null);
+            return;
+        }
+
+        final File dictionaryFile = new File(MultipleInventories.get().getDataFolder(), dictionaryPath.trim());
+
+        try
+        {
+            SnapshotCompression.setDictionary(Files.readAllBytes(dictionaryFile.toPath()));
+        }
+        catch (final IOException e)
+        {
+            PluginLogger.error("Unable to read the snapshots compression dictionary {0}; snapshots will be compressed without dictionary, and those compressed with it will fail to load.", e, dictionaryFile.getAbsolutePath());
+            SnapshotCompression.setDictionary(null);
+        }
+    }
+
+    /**
+     * @param playerID The player's UUID.
+     *
+     * @return The file holding all the snapshots of this player.
+     */
+    private static File getContainerFile(final UUID playerID)
     {
         final String lowercaseUUID = playerID.toString().toLowerCase();
 
         return new File(
                 MultipleInventories.get().getDataFolder(),
-                "snapshots"
-                        + File.separator + group
+                "players"
+                        + File.separator + lowercaseUUID.substring(0, 2)
+                        + File.separator + lowercaseUUID + ".snapshots");
+    }
+
+    /**
+     * @return The root of the legacy storage, where each snapshot was stored
+     * in its own JSON file.
+     */
+    private static File getLegacyDirectory()
+    {
+        return new File(MultipleInventories.get().getDataFolder(), "snapshots");
+    }
+
+    private static File getLegacyFileForSnapshot(final UUID playerID, final String group, final GameMode gamemode)
+    {
+        final String lowercaseUUID = playerID.toString().toLowerCase();
+
+        return new File(
+                getLegacyDirectory(),
+                group
                         + File.separator + lowercaseUUID.substring(0, 2)
                         + File.separator + lowercaseUUID + "." + gamemode.name() + ".json");
     }
 
-    public static void saveSnapshot(final UUID playerID, final String group, final GameMode gamemode, final PlayerSnapshot snapshot)
+    /**
+     * Reads the snapshots container of a player. If the player has no
+     * container yet but has snapshots stored using the legacy one-file-per-
+     * snapshot layout, they are migrated into a new container, and the legacy
+     * files are removed.
+     *
+     * Must be called from the worker thread.
+     *
+     * @param playerID The player's UUID.
+     *
+     * @return The container (empty if the player has no snapshot at all).
+     * @throws IOException if the container cannot be read or written.
+     */
+    private static SnapshotsContainer readContainer(final UUID playerID) throws IOException
+    {
+        final File containerFile = getContainerFile(playerID);
+        final SnapshotsContainer container = SnapshotsContainer.read(containerFile);
+
+        if (container != null) return container;
+
+        final SnapshotsContainer migrated = new SnapshotsContainer();
+        final File[] legacyGroups = getLegacyDirectory().listFiles(File::isDirectory);
+
+        if (legacyGroups == null) return migrated;
+
+        final List<File> legacyFiles = new ArrayList<>();
+
+        for (final File legacyGroup : legacyGroups)
+        {
+            for (final GameMode mode : GameMode.values())
+            {
+                final File legacyFile = getLegacyFileForSnapshot(playerID, legacyGroup.getName(), mode);
+                if (!legacyFile.isFile()) continue;
+
+                migrated.put(legacyGroup.getName(), mode, Files.readAllBytes(legacyFile.toPath()));
+                legacyFiles.add(legacyFile);
+            }
+        }
+
+        if (!migrated.isEmpty())
+        {
+            migrated.write(containerFile);
+
+            for (final File legacyFile : legacyFiles)
+            {
+                if (!legacyFile.delete())
+                    PluginLogger.warning("Unable to delete migrated legacy snapshot {0}", legacyFile.getAbsolutePath());
+            }
+        }
+
+        return migrated;
+    }
+
+    /**
+     * Queues snapshots of a player to be saved. They are written together,
+     * with a single write of the player's container. If snapshots of this
+     * player are still waiting to be written, these are merged with them,
+     * and replace the ones for the same group and gamemode: only the latest
+     * of each is serialized and written.
+     *
+     * @param playerID  The player's UUID.
+     * @param snapshots The snapshots to save, per group and gamemode.
+     */
+    public static void saveSnapshots(final UUID playerID, final Map<String, Map<GameMode, PlayerSnapshot>> snapshots)
     {
-        submitQuery(new WorkerRunnable<Void>()
+        final Map<SnapshotSlot, PlayerSnapshot> queued = new ConcurrentHashMap<>();
+        final Map<SnapshotSlot, PlayerSnapshot> pending = pendingSaves.compute(playerID, (id, current) ->
+        {
+            final Map<SnapshotSlot, PlayerSnapshot> target = current != null ? current : queued;
+
+            snapshots.forEach((group, gamemodes) -> gamemodes.forEach((gamemode, snapshot) ->
+            {
+                savesRequested.incrementAndGet();
+
+                // A write is already queued for this slot; it will write this snapshot instead.
+                if (target.put(new SnapshotSlot(group, gamemode), snapshot) != null)
+                    savesCollapsed.incrementAndGet();
+            }));
+
+            return target;
+        });
+
+        // Else, a write is already queued for this player, and will write these snapshots too.
+        if (pending != queued) return;
+
+        final SnapshotFormat format = Config.SNAPSHOTS_FORMAT.get();
+        final SnapshotCompression compression = Config.SNAPSHOTS_COMPRESSION.get();
+
+        submitQuery(playerID, new WorkerRunnable<Void>()
         {
             @Override
             public Void run() throws Throwable
             {
-                final String json = snapshot.toJSONString();
-                final File storageFile = getFileForSnapshot(playerID, group, gamemode);
+                final Map<SnapshotSlot, PlayerSnapshot> latestSnapshots = pendingSaves.remove(playerID);
+                if (latestSnapshots == null || latestSnapshots.isEmpty()) return null;
 
-                final File directory = storageFile.getParentFile();
-                if (!directory.mkdirs() && !(directory.exists() && directory.isDirectory()))
-                    throw new IOException("Cannot write into the snapshots storage directory (cannot create folders)");
+                final SnapshotsContainer container = readContainer(playerID);
 
-                FileUtils.writeFile(storageFile, json);
+                for (final Map.Entry<SnapshotSlot, PlayerSnapshot> entry : latestSnapshots.entrySet())
+                {
+                    final SnapshotSlot slot = entry.getKey();
+
+                    try
+                    {
+                        container.put(slot.group, slot.gamemode, compression.compress(format.encode(entry.getValue())));
+                    }
+                    catch (final IOException | RuntimeException e)
+                    {
+                        PluginLogger.error("Unable to encode player snapshot for group {0}, gamemode {1} and UUID {2}; the previous one is kept", e, slot.group, slot.gamemode, playerID);
+                    }
+                }
+
+                container.write(getContainerFile(playerID));
 
                 return null;
             }
@@ -89,34 +313,67 @@ public class SnapshotsIO extends Worker
             @Override
             public void errored(final Throwable exception)
             {
-                PluginLogger.error("Unable to save player snapshot for group {0}, gamemode {1} and UUID {2}", exception, group, gamemode, playerID);
+                PluginLogger.error("Unable to save player snapshots for UUID {0}", exception, playerID);
             }
         });
     }
 
-    public static void loadSnapshots(final UUID playerID, final WorkerCallback<Map<String, Map<GameMode, PlayerSnapshot>>> callback)
+    /**
+     * @return The amount of snapshots saves requested since the server
+     * started.
+     */
+    public static long getSavesRequested()
+    {
+        return savesRequested.get();
+    }
+
+    /**
+     * @return The amount of snapshots saves that were dropped because a newer
+     * snapshot for the same slot was saved before they were written.
+     */
+    public static long getSavesCollapsed()
     {
-        final Set<String> groups = MultipleInventories.get().getPlayersManager().getWorldGroupsNames();
+        return savesCollapsed.get();
+    }
+
+    /**
+     * @return The amount of snapshots currently waiting to be written.
+     */
+    public static int getPendingSavesCount()
+    {
+        int count = 0;
+        for (final Map<SnapshotSlot, PlayerSnapshot> playerSaves : pendingSaves.values())
+            count += playerSaves.size();
+
+        return count;
+    }
 
-        submitQuery(new WorkerRunnable<Map<String, Map<GameMode, PlayerSnapshot>>>() {
+    /**
+     * Loads all the snapshots of a player.
+     *
+     * The snapshots are only read here, and kept encoded: each one is decoded
+     * the first time it is needed, or in the background once the player is
+     * online (see {@link #decodeSnapshots(UUID, Map)}). The load time does
+     * not depend on the amount of groups and gamemodes stored.
+     *
+     * @param playerID The player's UUID.
+     * @param callback Called with the snapshots, per group and gamemode.
+     */
+    public static void loadSnapshots(final UUID playerID, final WorkerCallback<Map<String, Map<GameMode, LazySnapshot>>> callback)
+    {
+        submitQuery(playerID, new WorkerRunnable<Map<String, Map<GameMode, LazySnapshot>>>() {
             @Override
-            public Map<String, Map<GameMode, PlayerSnapshot>> run()
+            public Map<String, Map<GameMode, LazySnapshot>> run() throws Throwable
             {
-                final Map<String, Map<GameMode, PlayerSnapshot>> snapshots = new ConcurrentHashMap<>();
+                final Map<String, Map<GameMode, LazySnapshot>> snapshots = new ConcurrentHashMap<>();
+                final SnapshotsContainer container = readContainer(playerID);
 
-                for (final String group : groups)
+                for (final String group : container.getGroups())
                 {
-                    final Map<GameMode, PlayerSnapshot> groupSnapshots = new ConcurrentHashMap<>();
+                    final Map<GameMode, LazySnapshot> groupSnapshots = new ConcurrentHashMap<>();
 
-                    for (final GameMode mode : GameMode.values())
-                    {
-                        final String jsonSnapshot = FileUtils.readFile(getFileForSnapshot(playerID, group, mode));
-
-                        if (!jsonSnapshot.isEmpty())
-                        {
-                            groupSnapshots.put(mode, PlayerSnapshot.fromJSONString(jsonSnapshot));
-                        }
-                    }
+                    for (final Map.Entry<GameMode, byte[]> entry : container.getGroup(group).entrySet())
+                        groupSnapshots.put(entry.getKey(), LazySnapshot.ofStored(entry.getValue()));
 
                     snapshots.put(group, groupSnapshots);
                 }
@@ -125,4 +382,169 @@ public class SnapshotsIO extends Worker
             }
         }, callback);
     }
+
+    /**
+     * Decodes snapshots of a player in the background, in the iteration order
+     * of the given map, so they are ready when the player changes group or
+     * gamemode. Snapshots already decoded are skipped.
+     *
+     * Snapshots that cannot be decoded are reported. Their stored data is
+     * kept, and a copy of it is written next to the player's container when
+     * they are overwritten (see {@link #saveIfCorrupted(UUID, String, GameMode,
+     * LazySnapshot)}).
+     *
+     * @param playerID  The player's UUID.
+     * @param snapshots The snapshots to decode, per group and gamemode.
+     */
+    public static void decodeSnapshots(final UUID playerID, final Map<String, Map<GameMode, LazySnapshot>> snapshots)
+    {
+        submitQuery(playerID, new WorkerRunnable<Void>()
+        {
+            @Override
+            public Void run()
+            {
+                snapshots.forEach((group, gamemodes) -> gamemodes.forEach((gamemode, snapshot) ->
+                {
+                    if (snapshot.isDecoded()) return;
+
+                    try
+                    {
+                        snapshot.decode();
+                    }
+                    catch (final IOException | RuntimeException e)
+                    {
+                        PluginLogger.error("Unable to decode the snapshot of the player {0} for group {1} and gamemode {2}! The player will start with an empty inventory there. The stored snapshot is kept until overwritten, and a copy of it will then be written next to the player's snapshots.", e, playerID, group, gamemode);
+                    }
+                }));
+
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Writes a copy of a snapshot about to be overwritten in the player's
+     * container, if it cannot be decoded, so it can be recovered by hand. The
+     * copy is written next to the container, as {@code
+     * <uuid>.<group>.<GAMEMODE>.corrupted}.
+     *
+     * Snapshots not decoded yet are decoded on the I/O thread to check them.
+     *
+     * @param playerID The player's UUID.
+     * @param group    The worlds group.
+     * @param gamemode The gamemode.
+     * @param snapshot The overwritten snapshot.
+     */
+    public static void saveIfCorrupted(final UUID playerID, final String group, final GameMode gamemode, final LazySnapshot snapshot)
+    {
+        final File containerFile = getContainerFile(playerID);
+        final File copy = new File(
+                containerFile.getParentFile(),
+                playerID.toString().toLowerCase() + "." + group + "." + gamemode.name() + ".corrupted");
+
+        submitQuery(playerID, new WorkerRunnable<Boolean>()
+        {
+            @Override
+            public Boolean run() throws Throwable
+            {
+                try
+                {
+                    snapshot.decode();
+                }
+                catch (final IOException | RuntimeException e)
+                {
+                    PluginLogger.error("Unable to decode the overwritten snapshot of the player {0} for group {1} and gamemode {2}", e, playerID, group, gamemode);
+                }
+
+                final byte[] stored = snapshot.getCorruptedData();
+                if (stored == null) return false;
+
+                Files.write(copy.toPath(), stored);
+                return true;
+            }
+        }, new WorkerCallback<Boolean>()
+        {
+            @Override
+            public void finished(final Boolean written)
+            {
+                if (written)
+                    PluginLogger.warning("The corrupted snapshot of the player {0} for group {1} and gamemode {2} was overwritten; a copy of it was kept in {3}.", playerID, group, gamemode, copy.getAbsolutePath());
+            }
+
+            @Override
+            public void errored(final Throwable exception)
+            {
+                PluginLogger.error("Unable to write a copy of a corrupted snapshot to {0}", exception, copy.getAbsolutePath());
+            }
+        });
+    }
+
+    /**
+     * Builds in the background the items of a snapshot about to be applied,
+     * so applying it on the main thread is cheap. The items are only kept
+     * until the snapshot is applied.
+     *
+     * @param playerID   The player's UUID.
+     * @param snapshot   The snapshot.
+     * @param stillNeeded Checked on the main thread once the items are built;
+     *                    if it returns {@code false}, the items are dropped.
+     */
+    public static void prepareSnapshot(final UUID playerID, final LazySnapshot snapshot, final BooleanSupplier stillNeeded)
+    {
+        submitQuery(playerID, new WorkerRunnable<PlayerSnapshot.MaterializedItems>()
+        {
+            @Override
+            public PlayerSnapshot.MaterializedItems run()
+            {
+                final PlayerSnapshot decoded = snapshot.get();
+                return decoded != null ? decoded.buildItems() : null;
+            }
+        }, new WorkerCallback<PlayerSnapshot.MaterializedItems>()
+        {
+            @Override
+            public void finished(final PlayerSnapshot.MaterializedItems items)
+            {
+                // Set on the main thread only, so it can't race with the apply consuming them.
+                if (items != null && stillNeeded.getAsBoolean())
+                    snapshot.get().setMaterializedItems(items);
+            }
+
+            @Override
+            public void errored(final Throwable exception)
+            {
+                PluginLogger.error("Unable to prepare a snapshot of the player {0}; it will be built when applied", exception, playerID);
+            }
+        });
+    }
+
+    /**
+     * Identifies a stored snapshot of a player: a group and a gamemode.
+     */
+    private static final class SnapshotSlot
+    {
+        private final String group;
+        private final GameMode gamemode;
+
+        SnapshotSlot(final String group, final GameMode gamemode)
+        {
+            this.group = group;
+            this.gamemode = gamemode;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (this == o) return true;
+            if (!(o instanceof SnapshotSlot)) return false;
+
+            final SnapshotSlot other = (SnapshotSlot) o;
+            return group.equals(other.group) && gamemode == other.gamemode;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(group, gamemode);
+        }
+    }
 }
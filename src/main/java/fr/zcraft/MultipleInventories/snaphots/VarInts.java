@@ -0,0 +1,77 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+package fr.zcraft.MultipleInventories.snaphots;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Reads and writes unsigned variable-length integers (7 bits per byte, the
+ * high bit flagging a continuation), used by the binary snapshots format for
+ * counts and slot indexes, which are almost always below 128.
+ */
+final class VarInts
+{
+    private VarInts() {}
+
+    static void write(final DataOutput out, int value) throws IOException
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+
+    static int read(final DataInput in) throws IOException
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+
+        do
+        {
+            if (shift > 28) throw new IOException("Malformed variable-length integer");
+
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+
+        return value;
+    }
+}
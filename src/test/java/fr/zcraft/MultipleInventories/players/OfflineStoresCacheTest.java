@@ -0,0 +1,190 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.players;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.UUID;
+
+
+public class OfflineStoresCacheTest
+{
+    private static final long NEVER = Long.MAX_VALUE / 2;
+
+    /**
+     * A store with a settable size, recording its eviction.
+     */
+    private static final class TestStore extends PlayerSnapshotsStore
+    {
+        private long size;
+        private boolean evicted = false;
+
+        private TestStore(final long size)
+        {
+            super(UUID.randomUUID());
+            this.size = size;
+        }
+
+        @Override
+        public long getApproximateSize()
+        {
+            return size;
+        }
+
+        @Override
+        void evict()
+        {
+            evicted = true;
+        }
+    }
+
+    @Test
+    public void takenStoresLeaveTheCache()
+    {
+        final OfflineStoresCache cache = new OfflineStoresCache(10, 1000, NEVER);
+        final UUID playerID = UUID.randomUUID();
+        final TestStore store = new TestStore(100);
+
+        cache.put(playerID, store);
+
+        Assert.assertSame(store, cache.take(playerID));
+        Assert.assertNull(cache.take(playerID));
+
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getWeight());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertFalse(store.evicted);
+    }
+
+    @Test
+    public void leastRecentlyUsedStoresAreEvictedBeyondTheCount()
+    {
+        final OfflineStoresCache cache = new OfflineStoresCache(2, 1000, NEVER);
+        final TestStore first = new TestStore(10);
+        final TestStore second = new TestStore(10);
+        final TestStore third = new TestStore(10);
+
+        cache.put(UUID.randomUUID(), first);
+        cache.put(UUID.randomUUID(), second);
+        cache.put(UUID.randomUUID(), third);
+
+        Assert.assertTrue(first.evicted);
+        Assert.assertFalse(second.evicted);
+        Assert.assertFalse(third.evicted);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(20, cache.getWeight());
+        Assert.assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void storesAreEvictedBeyondTheWeight()
+    {
+        final OfflineStoresCache cache = new OfflineStoresCache(10, 250, NEVER);
+        final TestStore first = new TestStore(100);
+        final TestStore second = new TestStore(100);
+        final TestStore third = new TestStore(100);
+
+        cache.put(UUID.randomUUID(), first);
+        cache.put(UUID.randomUUID(), second);
+        cache.put(UUID.randomUUID(), third);
+
+        Assert.assertTrue(first.evicted);
+        Assert.assertEquals(200, cache.getWeight());
+    }
+
+    @Test
+    public void replacedStoresAreEvicted()
+    {
+        final OfflineStoresCache cache = new OfflineStoresCache(10, 1000, NEVER);
+        final UUID playerID = UUID.randomUUID();
+        final TestStore previous = new TestStore(100);
+        final TestStore store = new TestStore(50);
+
+        cache.put(playerID, previous);
+        cache.put(playerID, store);
+
+        Assert.assertTrue(previous.evicted);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(50, cache.getWeight());
+    }
+
+    @Test
+    public void expireRefreshesTheWeights()
+    {
+        final OfflineStoresCache cache = new OfflineStoresCache(10, 250, NEVER);
+        final TestStore first = new TestStore(100);
+        final TestStore second = new TestStore(100);
+
+        cache.put(UUID.randomUUID(), first);
+        cache.put(UUID.randomUUID(), second);
+
+        // The stores grow once their items are extracted.
+        first.size = 150;
+        second.size = 150;
+        cache.expire();
+
+        Assert.assertTrue(first.evicted);
+        Assert.assertFalse(second.evicted);
+        Assert.assertEquals(150, cache.getWeight());
+    }
+
+    @Test
+    public void unusedStoresExpire()
+    {
+        final OfflineStoresCache cache = new OfflineStoresCache(10, 1000, 0);
+        final TestStore store = new TestStore(100);
+
+        cache.put(UUID.randomUUID(), store);
+        cache.expire();
+
+        Assert.assertTrue(store.evicted);
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void clearEvictsEverything()
+    {
+        final OfflineStoresCache cache = new OfflineStoresCache(10, 1000, NEVER);
+        final TestStore store = new TestStore(100);
+
+        cache.put(UUID.randomUUID(), store);
+        cache.clear();
+
+        Assert.assertTrue(store.evicted);
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getWeight());
+    }
+}
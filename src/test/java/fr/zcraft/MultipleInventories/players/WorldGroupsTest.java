@@ -0,0 +1,173 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.players;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+
+public class WorldGroupsTest
+{
+    private static WorldGroups groups(final Object... groupsAndWorlds)
+    {
+        final Map<String, List<?>> groups = new LinkedHashMap<>();
+
+        for (int i = 0; i < groupsAndWorlds.length; i += 2)
+        {
+            groups.put((String) groupsAndWorlds[i], (List<?>) groupsAndWorlds[i + 1]);
+        }
+
+        return new WorldGroups(groups);
+    }
+
+    @Test
+    public void plainNamesAreNotPatterns()
+    {
+        Assert.assertNull(WorldGroups.compilePattern("world_nether"));
+        Assert.assertNull(WorldGroups.compilePattern("world.with.dots"));
+    }
+
+    @Test
+    public void globsMatchWholeNames()
+    {
+        final Pattern pattern = WorldGroups.compilePattern("dungeon_*");
+
+        Assert.assertNotNull(pattern);
+        Assert.assertTrue(pattern.matcher("dungeon_").matches());
+        Assert.assertTrue(pattern.matcher("dungeon_42").matches());
+        Assert.assertFalse(pattern.matcher("my_dungeon_42").matches());
+
+        final Pattern single = WorldGroups.compilePattern("arena_?");
+
+        Assert.assertTrue(single.matcher("arena_1").matches());
+        Assert.assertFalse(single.matcher("arena_12").matches());
+    }
+
+    @Test
+    public void globsQuoteRegexCharacters()
+    {
+        final Pattern pattern = WorldGroups.compilePattern("world.v2-*");
+
+        Assert.assertTrue(pattern.matcher("world.v2-nether").matches());
+        Assert.assertFalse(pattern.matcher("worldXv2-nether").matches());
+    }
+
+    @Test
+    public void regexEntries()
+    {
+        final Pattern pattern = WorldGroups.compilePattern("regex:arena_[0-9]+");
+
+        Assert.assertTrue(pattern.matcher("arena_12").matches());
+        Assert.assertFalse(pattern.matcher("arena_x").matches());
+    }
+
+    @Test
+    public void namedWorldsWinOverPatterns()
+    {
+        final WorldGroups groups = groups(
+                "dungeons", Arrays.asList("dungeon_*"),
+                "hub", Collections.singletonList("dungeon_hub")
+        );
+
+        Assert.assertEquals("hub", groups.resolve("dungeon_hub"));
+        Assert.assertEquals("dungeons", groups.resolve("dungeon_1"));
+    }
+
+    @Test
+    public void patternsAreCheckedInOrder()
+    {
+        final WorldGroups groups = groups(
+                "first", Collections.singletonList("arena_*"),
+                "second", Collections.singletonList("regex:arena_[0-9]+")
+        );
+
+        Assert.assertEquals("first", groups.resolve("arena_1"));
+    }
+
+    @Test
+    public void unlistedWorldsAreInTheDefaultGroup()
+    {
+        final WorldGroups groups = groups("survival", Arrays.asList("world", "world_nether"));
+
+        Assert.assertEquals("survival", groups.resolve("world_nether"));
+        Assert.assertEquals(WorldGroups.DEFAULT_GROUP, groups.resolve("creative"));
+    }
+
+    @Test
+    public void defaultGroupIsAlwaysConfigured()
+    {
+        final WorldGroups groups = groups("survival", Collections.singletonList("world"), "dungeons", Collections.singletonList("dungeon_*"));
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("survival", "dungeons", WorldGroups.DEFAULT_GROUP)), groups.getGroups());
+    }
+
+    @Test
+    public void onlyNamedWorldsAreListed()
+    {
+        final WorldGroups groups = groups("dungeons", Arrays.asList("dungeon_hub", "dungeon_*"));
+
+        Assert.assertEquals(Collections.singleton("dungeon_hub"), groups.getNamedWorldsByGroup().get("dungeons"));
+    }
+
+    @Test
+    public void invalidRegexesAreReportedAndIgnored()
+    {
+        final WorldGroups groups = groups("broken", Arrays.asList("regex:arena_[", "world"));
+
+        Assert.assertEquals(1, groups.getInvalidEntries().size());
+        Assert.assertEquals("broken", groups.resolve("world"));
+        Assert.assertEquals(WorldGroups.DEFAULT_GROUP, groups.resolve("arena_["));
+    }
+
+    @Test
+    public void resolvedWorldsAreCachedUntilForgotten()
+    {
+        final WorldGroups groups = groups("dungeons", Collections.singletonList("dungeon_*"));
+        final UUID worldID = UUID.randomUUID();
+
+        Assert.assertEquals("dungeons", groups.resolve(worldID, "dungeon_1"));
+        Assert.assertEquals(1, groups.getResolvedWorldsCount());
+
+        groups.forget(worldID);
+        Assert.assertEquals(0, groups.getResolvedWorldsCount());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.snaphots;
+
+import org.bukkit.Material;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class ItemSlotsTest
+{
+    private static ItemStackSnapshot item(final int amount)
+    {
+        return new ItemStackSnapshot(Material.STONE, (short) 0, amount, (Map<String, Object>) null);
+    }
+
+    @Test
+    public void emptySlotsAreShared()
+    {
+        Assert.assertSame(ItemSlots.EMPTY, ItemSlots.of(new ItemStackSnapshot[41]));
+        Assert.assertSame(ItemSlots.EMPTY, ItemSlots.of(new HashMap<>()));
+    }
+
+    @Test
+    public void sizeIsTheLastUsedSlotPlusOne()
+    {
+        final ItemStackSnapshot[] bySlot = new ItemStackSnapshot[41];
+        bySlot[3] = item(1);
+        bySlot[10] = item(2);
+
+        final ItemSlots slots = ItemSlots.of(bySlot);
+
+        Assert.assertEquals(11, slots.size());
+        Assert.assertEquals(2, slots.count());
+    }
+
+    @Test
+    public void getFindsItemsAcrossBitmapWords()
+    {
+        final ItemStackSnapshot[] bySlot = new ItemStackSnapshot[130];
+        for (final int slot : new int[] {0, 5, 63, 64, 100, 129}) bySlot[slot] = item(slot + 1);
+
+        final ItemSlots slots = ItemSlots.of(bySlot);
+
+        for (int slot = -1; slot <= 130; slot++)
+        {
+            Assert.assertSame("Slot " + slot, slot >= 0 && slot < bySlot.length ? bySlot[slot] : null, slots.get(slot));
+        }
+    }
+
+    @Test
+    public void forEachVisitsItemsInSlotOrder()
+    {
+        final Map<Integer, ItemStackSnapshot> bySlot = new HashMap<>();
+        bySlot.put(39, item(4));
+        bySlot.put(2, item(1));
+        bySlot.put(36, item(2));
+        bySlot.put(-106, item(3));
+        bySlot.put(500, item(5));
+
+        final List<Integer> visited = new ArrayList<>();
+        ItemSlots.of(bySlot).forEach((item, slot) ->
+        {
+            Assert.assertSame(bySlot.get(slot), item);
+            visited.add(slot);
+        });
+
+        // Negative and out of range slots are ignored.
+        Assert.assertEquals(3, visited.size());
+        Assert.assertEquals(Integer.valueOf(2), visited.get(0));
+        Assert.assertEquals(Integer.valueOf(36), visited.get(1));
+        Assert.assertEquals(Integer.valueOf(39), visited.get(2));
+    }
+
+    @Test
+    public void binaryRoundTrip() throws IOException
+    {
+        final ItemStackSnapshot[] bySlot = new ItemStackSnapshot[70];
+        for (final int slot : new int[] {0, 7, 8, 40, 69}) bySlot[slot] = item(slot + 1);
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ItemSlots.of(bySlot).toBinary(new DataOutputStream(buffer));
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+        final ItemSlots read = ItemSlots.fromBinary(in);
+
+        Assert.assertEquals(0, in.available());
+        Assert.assertEquals(70, read.size());
+
+        for (int slot = 0; slot < bySlot.length; slot++)
+        {
+            Assert.assertEquals("Slot " + slot, bySlot[slot], read.get(slot));
+        }
+    }
+
+    @Test (expected = IOException.class)
+    public void oversizedSlotsAreRejected() throws IOException
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        VarInts.write(new DataOutputStream(buffer), Integer.MAX_VALUE);
+
+        ItemSlots.fromBinary(new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.snaphots;
+
+import org.bukkit.Material;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class ItemStackSnapshotTest
+{
+    private static final byte[] PAPER_BYTES = {10, 0, 0, 3, 0, 2, 'i', 'd', 0};
+
+    private static Map<String, Object> nbt()
+    {
+        final Map<String, Object> display = new HashMap<>();
+        display.put("Name", "{\"text\":\"Excalibur\"}");
+
+        final Map<String, Object> nbt = new HashMap<>();
+        nbt.put("Damage", 12);
+        nbt.put("Unbreakable", (byte) 1);
+        nbt.put("HideFlags", (short) 3);
+        nbt.put("Seed", 1234567890123L);
+        nbt.put("Ratio", 0.5f);
+        nbt.put("Precise", 0.25d);
+        nbt.put("Lore", Arrays.asList("first", "second"));
+        nbt.put("display", display);
+
+        return nbt;
+    }
+
+    private static byte[] toBinary(final ItemStackSnapshot item) throws IOException
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        item.toBinary(new DataOutputStream(buffer));
+        return buffer.toByteArray();
+    }
+
+    private static ItemStackSnapshot fromBinary(final byte[] binary) throws IOException
+    {
+        return ItemStackSnapshot.fromBinary(new DataInputStream(new ByteArrayInputStream(binary)));
+    }
+
+    /**
+     * Writes the header of a binary item (material, durability, amount).
+     */
+    private static DataOutputStream itemHeader(final ByteArrayOutputStream buffer, final Material material) throws IOException
+    {
+        final DataOutputStream out = new DataOutputStream(buffer);
+
+        out.writeUTF(material.name());
+        out.writeShort(0);
+        VarInts.write(out, 1);
+
+        return out;
+    }
+
+    @Test
+    public void binaryRoundTripKeepsNBTTypes() throws IOException
+    {
+        final ItemStackSnapshot item = new ItemStackSnapshot(Material.DIAMOND_SWORD, (short) 1549, 1, nbt());
+        Assert.assertEquals(item, fromBinary(toBinary(item)));
+    }
+
+    @Test
+    public void binaryRoundTripWithoutNBT() throws IOException
+    {
+        final ItemStackSnapshot item = new ItemStackSnapshot(Material.STONE, (short) 0, 64, (Map<String, Object>) null);
+
+        Assert.assertEquals(item, fromBinary(toBinary(item)));
+    }
+
+    @Test
+    public void paperItemsAreStoredWithoutNBT() throws IOException
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = itemHeader(buffer, Material.STONE);
+
+        out.writeByte(7);
+        VarInts.write(out, PAPER_BYTES.length);
+        out.write(PAPER_BYTES);
+
+        final byte[] paperItem = buffer.toByteArray();
+
+        // The next item must be read right after the Paper bytes.
+        itemHeader(buffer, Material.DIRT).writeByte(0);
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+        final ItemStackSnapshot read = ItemStackSnapshot.fromBinary(in);
+
+        Assert.assertArrayEquals(paperItem, toBinary(read));
+        Assert.assertTrue(ItemStackSnapshot.fromBinary(in).toJSONString().contains("DIRT"));
+        Assert.assertEquals(0, in.available());
+
+        final String json = read.toJSONString();
+
+        Assert.assertTrue(json, json.contains("\"Paper\""));
+        Assert.assertFalse(json, json.contains("NBT"));
+    }
+
+    @Test (expected = IOException.class)
+    public void unknownTagsAreRejected() throws IOException
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        itemHeader(buffer, Material.STONE).writeByte(3);
+
+        fromBinary(buffer.toByteArray());
+    }
+
+    @Test
+    public void jsonRoundTripKeepsNBTTypes()
+    {
+        final ItemStackSnapshot item = new ItemStackSnapshot(Material.DIAMOND_SWORD, (short) 1549, 1, nbt());
+
+        Assert.assertEquals(item, ItemStackSnapshot.fromJSONString(item.toJSONString()));
+    }
+
+    @Test
+    public void jsonWritesOnlyTypedNBT()
+    {
+        final Map<String, Object> nbt = new HashMap<>();
+        nbt.put("Damage", 12);
+
+        final String json = new ItemStackSnapshot(Material.DIAMOND_SWORD, (short) 1549, 1, nbt).toJSONString();
+
+        Assert.assertTrue(json, json.contains("\"TypedNBT\":{\"Damage\":\"i12\"}"));
+        Assert.assertFalse(json, json.contains("\"NBT\""));
+    }
+
+    @Test
+    public void jsonWithUntypedNBTOnlyIsRead()
+    {
+        final ItemStackSnapshot read = ItemStackSnapshot.fromJSONString(
+                "{\"id\":\"DIAMOND_SWORD\",\"Damage\":1549,\"Count\":1,\"NBT\":{\"Damage\":12,\"Seed\":1234567890123,\"Lore\":[\"first\"]}}");
+
+        final Map<String, Object> nbt = new HashMap<>();
+        // Untyped numbers are read as the smallest type they fit in.
+        nbt.put("Damage", (byte) 12);
+        nbt.put("Seed", 1234567890123L);
+        nbt.put("Lore", Arrays.asList("first"));
+
+        Assert.assertEquals(new ItemStackSnapshot(Material.DIAMOND_SWORD, (short) 1549, 1, nbt), read);
+    }
+}
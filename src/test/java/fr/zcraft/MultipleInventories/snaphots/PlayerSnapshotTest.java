@@ -0,0 +1,123 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.snaphots;
+
+import org.bukkit.Material;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class PlayerSnapshotTest
+{
+    private static ItemStackSnapshot item(final Material material, final int amount)
+    {
+        return new ItemStackSnapshot(material, (short) 0, amount, (Map<String, Object>) null);
+    }
+
+    private static void writeStats(final DataOutputStream out) throws IOException
+    {
+        out.writeInt(30);
+        out.writeFloat(0.5f);
+        out.writeInt(1395);
+        out.writeInt(20);
+        out.writeFloat(0f);
+        out.writeFloat(5f);
+        out.writeDouble(20);
+        out.writeDouble(20);
+    }
+
+    private static PlayerSnapshot snapshot(final Map<Integer, ItemStackSnapshot> inventory, final Map<Integer, ItemStackSnapshot> enderChest, final ItemStackSnapshot[] armor)
+    {
+        return new PlayerSnapshot(30, 0.5f, 1395, 20, 0f, 5f, 20, 20, inventory, enderChest, armor, Collections.emptyList());
+    }
+
+    @Test
+    public void binaryRoundTrip() throws IOException
+    {
+        final Map<Integer, ItemStackSnapshot> inventory = new HashMap<>();
+        inventory.put(0, item(Material.DIAMOND_SWORD, 1));
+        inventory.put(35, item(Material.STONE, 64));
+
+        final Map<Integer, ItemStackSnapshot> enderChest = Collections.singletonMap(26, item(Material.DIRT, 3));
+        final ItemStackSnapshot[] armor = {item(Material.IRON_BOOTS, 1), null, null, item(Material.IRON_HELMET, 1)};
+
+        final byte[] binary = snapshot(inventory, enderChest, armor).toBinary();
+
+        Assert.assertTrue(PlayerSnapshot.isBinary(binary));
+        Assert.assertArrayEquals(binary, PlayerSnapshot.fromBinary(binary).toBinary());
+    }
+
+    @Test
+    public void jsonStoresTheArmorInTheInventoryOnly() throws IOException
+    {
+        final ItemStackSnapshot[] armor = {item(Material.IRON_BOOTS, 1), null, null, item(Material.IRON_HELMET, 1)};
+        final PlayerSnapshot snapshot = snapshot(Collections.emptyMap(), Collections.emptyMap(), armor);
+
+        final String json = snapshot.toJSONString();
+
+        Assert.assertFalse(json, json.contains("\"armor\""));
+        Assert.assertArrayEquals(snapshot.toBinary(), PlayerSnapshot.fromJSONString(json).toBinary());
+    }
+
+    @Test
+    public void jsonArmorIsMovedIntoTheInventory() throws IOException
+    {
+        final ItemStackSnapshot boots = item(Material.IRON_BOOTS, 1);
+        final String json = "{\"level\":30,\"exp\":0.5,\"expTotal\":1395,\"foodLevel\":20,\"exhaustion\":0.0,\"saturation\":5.0,"
+                + "\"health\":20.0,\"maxHealth\":20.0,\"armor\":[" + boots.toJSONString() + ",null,null,null],"
+                + "\"inventory\":{},\"enderChest\":{},\"effects\":[]}";
+
+        final PlayerSnapshot expected = snapshot(Collections.singletonMap(36, boots), Collections.emptyMap(), new ItemStackSnapshot[0]);
+
+        Assert.assertArrayEquals(expected.toBinary(), PlayerSnapshot.fromJSONString(json).toBinary());
+    }
+
+    @Test (expected = IOException.class)
+    public void newerVersionsAreRejected() throws IOException
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+
+        out.write(new byte[] {'M', 'I', 'B', 127});
+        writeStats(out);
+
+        PlayerSnapshot.fromBinary(buffer.toByteArray());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.snaphots;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+public class SnapshotCompressionTest
+{
+    private static final byte[] PAYLOAD = repeat("{\"id\":\"DIAMOND_SWORD\",\"Damage\":1561,\"Count\":1},", 200);
+
+    private static byte[] repeat(final String text, final int times)
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) builder.append(text);
+
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @After
+    public void resetDictionary()
+    {
+        SnapshotCompression.setDictionary(null);
+    }
+
+    @Test
+    public void noneKeepsThePayload() throws IOException
+    {
+        Assert.assertSame(PAYLOAD, SnapshotCompression.NONE.compress(PAYLOAD));
+    }
+
+    @Test
+    public void uncompressedPayloadsAreReadAsIs() throws IOException
+    {
+        Assert.assertSame(PAYLOAD, SnapshotCompression.decompress(PAYLOAD));
+    }
+
+    @Test
+    public void deflateRoundTrip() throws IOException
+    {
+        final byte[] compressed = SnapshotCompression.DEFLATE.compress(PAYLOAD);
+
+        Assert.assertTrue(compressed.length < PAYLOAD.length / 4);
+        Assert.assertArrayEquals(PAYLOAD, SnapshotCompression.decompress(compressed));
+    }
+
+    @Test
+    public void gzipRoundTrip() throws IOException
+    {
+        final byte[] compressed = SnapshotCompression.GZIP.compress(PAYLOAD);
+
+        Assert.assertTrue(compressed.length < PAYLOAD.length / 4);
+        Assert.assertArrayEquals(PAYLOAD, SnapshotCompression.decompress(compressed));
+    }
+
+    @Test
+    public void emptyPayloads() throws IOException
+    {
+        for (final SnapshotCompression compression : SnapshotCompression.values())
+        {
+            Assert.assertEquals(0, SnapshotCompression.decompress(compression.compress(new byte[0])).length);
+        }
+    }
+
+    @Test
+    public void deflateWithDictionaryRoundTrip() throws IOException
+    {
+        SnapshotCompression.setDictionary("\"id\":\"DIAMOND_SWORD\",\"Damage\":".getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertArrayEquals(PAYLOAD, SnapshotCompression.decompress(SnapshotCompression.DEFLATE.compress(PAYLOAD)));
+    }
+
+    @Test (expected = IOException.class)
+    public void anotherDictionaryIsRejected() throws IOException
+    {
+        SnapshotCompression.setDictionary("\"id\":\"DIAMOND_SWORD\"".getBytes(StandardCharsets.UTF_8));
+        final byte[] compressed = SnapshotCompression.DEFLATE.compress(PAYLOAD);
+
+        SnapshotCompression.setDictionary("\"id\":\"GOLDEN_APPLE\"".getBytes(StandardCharsets.UTF_8));
+        SnapshotCompression.decompress(compressed);
+    }
+
+    @Test (expected = IOException.class)
+    public void truncatedSnapshotsAreRejected() throws IOException
+    {
+        final byte[] compressed = SnapshotCompression.DEFLATE.compress(PAYLOAD);
+        SnapshotCompression.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright or © or Copr. AmauryCarrade (2015)
+ * 
+ * http://amaury.carrade.eu
+ * 
+ * This software is governed by the CeCILL-B license under French law and
+ * abiding by the rules of distribution of free software.  You can  use, 
+ * modify and/ or redistribute the software under the terms of the CeCILL-B
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info". 
+ * 
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability. 
+ * 
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or 
+ * data to be ensured and,  more generally, to use and operate it in the 
+ * same conditions as regards security. 
+ * 
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL-B license and that you accept its terms.
+ */
+
+package fr.zcraft.MultipleInventories.snaphots;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+
+public class VarIntsTest
+{
+    private static byte[] write(final int value) throws IOException
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        VarInts.write(new DataOutputStream(buffer), value);
+        return buffer.toByteArray();
+    }
+
+    private static int read(final byte[] bytes) throws IOException
+    {
+        return VarInts.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void smallValuesTakeOneByte() throws IOException
+    {
+        Assert.assertArrayEquals(new byte[] {0}, write(0));
+        Assert.assertArrayEquals(new byte[] {127}, write(127));
+    }
+
+    @Test
+    public void largerValuesAreSplitInSevenBitsGroups() throws IOException
+    {
+        Assert.assertArrayEquals(new byte[] {(byte) 0x80, 0x01}, write(128));
+        Assert.assertArrayEquals(new byte[] {(byte) 0xAC, 0x02}, write(300));
+        Assert.assertEquals(5, write(Integer.MAX_VALUE).length);
+    }
+
+    @Test
+    public void roundTrip() throws IOException
+    {
+        for (final int value : new int[] {0, 1, 41, 127, 128, 255, 16383, 16384, 1 << 21, 1 << 28, Integer.MAX_VALUE, -1, Integer.MIN_VALUE})
+        {
+            Assert.assertEquals(value, read(write(value)));
+        }
+    }
+
+    @Test (expected = IOException.class)
+    public void tooLongValuesAreRejected() throws IOException
+    {
+        read(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01});
+    }
+
+    @Test (expected = IOException.class)
+    public void truncatedValuesAreRejected() throws IOException
+    {
+        read(new byte[] {(byte) 0x80});
+    }
+}